@@ -0,0 +1,20 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# Builds a native executable of the client with GraalVM native-image, for
+# terminals where even the class data sharing start is too slow.
+# JAVA_HOME must point at a GraalVM install with native-image.
+if [ -n "$JAVA_HOME" ]; then
+   export PATH=$JAVA_HOME/bin:$PATH
+fi
+
+javac -d $DIR/../classes $DIR/../src/Cafe.java
+
+native-image --no-fallback \
+   -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar \
+   -o $DIR/../classes/cafe \
+   Cafe
+
+#run the native program
+#Use your database name, port number and login
+#$DIR/../classes/cafe $USER"_DB" $PGPORT $USER
@@ -0,0 +1,19 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# Checks the offline order journal (recovery, torn records, compaction and
+# replays) on a throwaway journal file. The replay check runs against the
+# database and is rolled back; pass --offline to skip it. Run compile.sh first.
+#
+# Usage: journal_selftest.sh [--offline] [java options]
+
+if [ -n "$JAVA_HOME" ]; then
+   export PATH=$JAVA_HOME/bin:$PATH
+fi
+
+if [ "$1" == "--offline" ]; then
+   shift
+   java "$@" -cp $DIR/../classes/cafe.jar:$DIR/../lib/pg73jdbc3.jar Cafe --journal-selftest
+else
+   java "$@" -cp $DIR/../classes/cafe.jar:$DIR/../lib/pg73jdbc3.jar Cafe --journal-selftest $USER"_DB" $PGPORT $USER
+fi
@@ -0,0 +1,25 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# Runs the main workflows through a local proxy that adds network latency
+# between the client and Postgres, and reports round trips and time per
+# workflow at each round trip time. Run compile.sh first.
+# The workflows place real orders for the given login. After each round trip
+# time the orders of that login newer than the ones it had before are deleted,
+# so use a login nobody else orders with at the same time, or a dedicated
+# bench database. The login is not remembered for offline use, and orders the
+# workflows take offline go to a throwaway journal that is dropped at the end.
+#
+# Usage: rtt_bench.sh <login> <password> [java options]
+# e.g.   rtt_bench.sh Amy a5319 -Dcafe.bench.rtts=0,10,100 -Dcafe.bench.jitter=5 \
+#           -Dcafe.bench.bandwidth=125000 -Dcafe.bench.drop=0.001
+
+if [ -n "$JAVA_HOME" ]; then
+   export PATH=$JAVA_HOME/bin:$PATH
+fi
+
+LOGIN=$1
+PASSWORD=$2
+shift 2
+
+java "$@" -cp $DIR/../classes/cafe.jar:$DIR/../lib/pg73jdbc3.jar Cafe --rtt-bench $USER"_DB" $PGPORT $USER $LOGIN $PASSWORD
@@ -0,0 +1,32 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# Measures time to first prompt and time to first query of the client.
+# Run compile.sh first so the classes and the class data sharing archive exist.
+#
+# Usage: startup_bench.sh <login> <password> [runs]
+# The login is used to log in once per run, which issues the first query.
+
+if [ -n "$JAVA_HOME" ]; then
+   export PATH=$JAVA_HOME/bin:$PATH
+fi
+
+LOGIN=$1
+PASSWORD=$2
+RUNS=${3:-10}
+CLASSPATH=$DIR/../classes/cafe.jar:$DIR/../lib/pg73jdbc3.jar
+ARCHIVE=$DIR/../classes/cafe.jsa
+
+run() {
+   for i in $(seq $RUNS); do
+      printf '2\n%s\n%s\n9\n9\n' "$LOGIN" "$PASSWORD" \
+         | java -Dcafe.startupTiming=true -Dcafe.launchedAt=$(date +%s%3N) "$@" -cp $CLASSPATH Cafe $USER"_DB" $PGPORT $USER 2>&1 >/dev/null \
+         | grep '^\[startup\]'
+   done | awk -F': ' '{ split($2, ms, " "); sum[$1] += ms[1]; n[$1]++ }
+      END { for (k in sum) printf "   %s: %.1f ms average\n", substr(k, 11), sum[k] / n[k] }'
+}
+
+echo "Default JVM ($RUNS runs)"
+run
+echo "Class data sharing archive ($RUNS runs)"
+run -XX:SharedArchiveFile=$ARCHIVE -Xshare:auto -XX:TieredStopAtLevel=1
@@ -20,12 +20,63 @@ import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.io.File;
 import java.io.FileReader;
+import java.io.FileOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.Writer;
 import java.io.IOException;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDate;
 import java.util.List;
 import java.util.Locale;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.Base64;
+import java.util.Properties;
+import java.util.zip.GZIPOutputStream;
+import java.security.SecureRandom;
+import java.security.GeneralSecurityException;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -34,8 +85,27 @@ import java.util.ArrayList;
  */
 public class Cafe {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // references to the physical database connections, one per store
+   // database (shard). Users and their orders live on the shard picked by
+   // ShardForLogin, the menu is copied to every shard.
+   private final Connection[] _connections;
+
+   // the connections being opened in the background, see getConnection
+   private final List<CompletableFuture<Connection>> _pendingConnections;
+
+   // the shard the statements go to, see useShardForLogin
+   private int _currentShard = 0;
+
+   // connection parameters, kept to reconnect and to open the forwarder's connection
+   private final String[] _urls;
+   private final String _user;
+   private final String _passwd;
+
+   // local journal of the orders taken while the database was unreachable
+   private OrderJournal _journal = null;
+
+   // today's orders kept in memory for the dashboard, loaded when it is first opened
+   private OrderSnapshot _snapshot = null;
 
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
@@ -44,36 +114,223 @@ public class Cafe {
 
    public String CurrentlyloggedInUser;
 
+   // statements sent to the database so far, and the ones that failed
+   // (including the ones that could not connect or were shed), reported by
+   // RunLatencyScenarios
+   private final AtomicLong _roundTrips = new AtomicLong();
+   private final AtomicLong _failures = new AtomicLong();
+
+   // bounds the operations running against the database, see AdmissionController
+   private final AdmissionController _admission = new AdmissionController(this._roundTrips, this._failures);
+
    public static Locale locale = new Locale("en","US");
    public static NumberFormat currencyFormatter = NumberFormat.getCurrencyInstance(locale);
 
+   // the number of orders settled per statement by SettleUnpaidOrders
+   private static final int SETTLE_CHUNK = 500;
+
+   // how often the dashboard refreshes its snapshot of today's orders
+   private static final int DASHBOARD_REFRESH_SECONDS = 5;
+
+   // how long a statement may run, and how long a statement waits for the
+   // connection, before it fails and e.g. the order is taken offline
+   private static final int STATEMENT_TIMEOUT_MILLIS = Integer.getInteger("cafe.statementTimeoutMillis", 10000);
+   private static final int CONNECT_TIMEOUT_MILLIS = Integer.getInteger("cafe.connectTimeoutMillis", 5000);
+
+   // salted PBKDF2 hashes of the passwords of the users who logged in on this
+   // terminal, so they can log in and take orders while the database is down
+   private static final File loginCache = new File(System.getProperty("cafe.loginCache", "logins.cache"));
+   // PBKDF2-HMAC-SHA256 work factor for new entries, stored with each entry
+   private static final int LOGIN_CACHE_ITERATIONS = Integer.getInteger("cafe.loginCacheIterations", 210000);
+   // off for the latency bench, whose login is not a real terminal user
+   private static boolean rememberLogins = true;
+
+   // startup milestones, reported by ReportStartupTime
+   private static final boolean startupTiming = Boolean.getBoolean("cafe.startupTiming");
+   private static final long classLoadedAt = System.currentTimeMillis();
+   private static final Set<String> reportedMilestones = new HashSet<String>();
+
    /**
-    * Creates a new instance of Cafe
+    * Creates a new instance of Cafe. The connection is opened in the
+    * background so the first prompt is shown while the driver loads and
+    * connects; the first statement waits for it to be ready.
     *
     * @param hostname the MySQL or PostgreSQL server hostname
-    * @param database the name of the database
+    * The server host is localhost unless set with -Dcafe.host.
+    *
+    * @param database the name of the database, or a comma separated list of
+    *                 the store databases when the stores are sharded
     * @param username the user name used to login to the database
     * @param password the user login password
     * @throws java.sql.SQLException when failed to make a connection.
     */
    public Cafe(String dbname, String dbport, String user, String passwd) throws SQLException {
 
-      System.out.print("Connecting to database...");
-      try {
-         // constructs the connection URL
-         String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
-         System.out.println("Connection URL: " + url + "\n");
+      // constructs the connection URLs
+      String[] dbnames = dbname.split(",");
+      this._urls = new String[dbnames.length];
+      String host = System.getProperty("cafe.host", "localhost");
+      for (int i = 0; i < dbnames.length; i++) {
+         this._urls[i] = "jdbc:postgresql://" + host + ":" + dbport + "/" + dbnames[i].strip();
+         System.out.println("Connecting to database in the background: " + this._urls[i]);
+      }
+      System.out.println();
+      this._user = user;
+      this._passwd = passwd;
+
+      // obtain the physical connections
+      this._connections = new Connection[this._urls.length];
+      this._pendingConnections = new ArrayList<CompletableFuture<Connection>>();
+      for (int i = 0; i < this._urls.length; i++) {
+         this._pendingConnections.add(this.connectInBackground(i));
+      }
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
-         System.out.println("Done");
-      } catch (Exception e) {
-         System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
-         System.out.println("Make sure you started postgres on this machine");
-         System.exit(-1);
-      } // end catch
+      // orders taken while the database is unreachable are kept here until
+      // the forwarder has written them to the database
+      try {
+         this._journal = OrderJournal.open(new File(System.getProperty("cafe.journal", "orders.journal")));
+         this._journal.startForwarder(this);
+      } catch (IOException e) {
+         System.err.println("Offline order journal unavailable: " + e.getMessage());
+      }
    }// end Cafe
 
+   /**
+    * Method to open a new physical connection to one of the databases.
+    *
+    * @param shard the index of the database
+    * @return the new connection
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   Connection openConnection(int shard) throws SQLException {
+      try {
+         // use postgres JDBC driver.
+         Class.forName("org.postgresql.Driver");
+      } catch (ClassNotFoundException e) {
+         throw new SQLException("PostgreSQL JDBC driver not found on the classpath");
+      }
+      Connection connection = DriverManager.getConnection(this._urls[shard], this._user, this._passwd);
+      if (STATEMENT_TIMEOUT_MILLIS > 0) {
+         Statement stmt = connection.createStatement();
+         stmt.executeUpdate("SET statement_timeout = " + STATEMENT_TIMEOUT_MILLIS);
+         stmt.close();
+      }
+      return connection;
+   }// end openConnection
+
+   /*
+    * Starts opening a physical connection on a background thread.
+    **/
+   private CompletableFuture<Connection> connectInBackground(int shard) {
+      return CompletableFuture.supplyAsync(() -> {
+         try {
+            return this.openConnection(shard);
+         } catch (SQLException e) {
+            throw new CompletionException(e);
+         }
+      });
+   }
+
+   /**
+    * Method to get the physical connection, waiting for the background
+    * connect started by the constructor if it has not finished yet. When
+    * the connect failed, a new one is started for the next statement; when
+    * it takes too long, it is left running for the next statement.
+    *
+    * @param shard the index of the database
+    * @return the physical connection
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   private synchronized Connection getConnection(int shard) throws SQLException {
+      if (this._connections[shard] == null) {
+         try {
+            this._connections[shard] = this._pendingConnections.get(shard).get(CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+         } catch (ExecutionException e) {
+            this._failures.incrementAndGet();
+            this.reconnect(shard);
+            throw new SQLException("Error - Unable to Connect to Database: " + e.getCause().getMessage()
+                  + "\nMake sure you started postgres on this machine");
+         } catch (TimeoutException | InterruptedException e) {
+            this._failures.incrementAndGet();
+            throw new SQLException("Error - Timed out connecting to the database " + this._urls[shard]);
+         } // end catch
+      } // end if
+      return this._connections[shard];
+   }// end getConnection
+
+   private Connection getConnection() throws SQLException {
+      return this.getConnection(this._currentShard);
+   }
+
+   /**
+    * Method to drop the physical connection to the current shard, e.g. after
+    * the database went away, and start opening a new one in the background.
+    */
+   public void reconnect() {
+      this.reconnect(this._currentShard);
+   }// end reconnect
+
+   private synchronized void reconnect(int shard) {
+      if (this._connections[shard] == null && !this._pendingConnections.get(shard).isDone()) {
+         // a connect is still in progress
+         return;
+      }
+      try {
+         if (this._connections[shard] != null) {
+            this._connections[shard].close();
+         } // end if
+      } catch (SQLException e) {
+         // ignored, the connection is most likely broken already.
+      } // end try
+      this._connections[shard] = null;
+      this._pendingConnections.set(shard, this.connectInBackground(shard));
+   }
+
+   /**
+    * Method to send the following statements to the shard holding the
+    * given user and their orders.
+    *
+    * @param login the login of the user
+    */
+   public void useShardForLogin(String login) {
+      this._currentShard = ShardForLogin(login, this._urls.length);
+   }// end useShardForLogin
+
+   /**
+    * Method to send the following statements to the given shard.
+    *
+    * @param shard the index of the database
+    */
+   public void useShard(int shard) {
+      this._currentShard = shard;
+   }// end useShard
+
+   /**
+    * Method to get the number of store databases (shards).
+    *
+    * @return the number of shards
+    */
+   public int getShardCount() {
+      return this._urls.length;
+   }// end getShardCount
+
+   /*
+    * Maps a login to its shard: the first 4 bytes of the md5 of the login, as
+    * an unsigned number, modulo the number of shards. sql/src/shard_data.sql
+    * computes the same thing in SQL to split the data between the shards.
+    **/
+   static int ShardForLogin(String login, int shards) {
+      if (shards == 1 || login == null) {
+         return 0;
+      }
+      try {
+         byte[] digest = MessageDigest.getInstance("MD5").digest(login.strip().getBytes(StandardCharsets.UTF_8));
+         return (int) (Integer.toUnsignedLong(ByteBuffer.wrap(digest).getInt()) % shards);
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
    /**
     * Method to execute an update SQL statement. Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
@@ -82,14 +339,29 @@ public class Cafe {
     * @throws java.sql.SQLException when update failed
     */
    public void executeUpdate(String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement();
+      this.executeUpdate(sql, this._currentShard);
+   }// end executeUpdate
+
+   private void executeUpdate(String sql, int shard) throws SQLException {
+      Connection connection = this.getConnection(shard);
+      this._roundTrips.incrementAndGet();
+      boolean succeeded = false;
+      try {
+         // creates a statement object
+         Statement stmt = connection.createStatement();
 
-      // issues the update instruction
-      stmt.executeUpdate(sql);
+         // issues the update instruction
+         stmt.executeUpdate(sql);
 
-      // close the instruction
-      stmt.close();
+         // close the instruction
+         stmt.close();
+         succeeded = true;
+         ReportStartupTime("first query");
+      } finally {
+         if (!succeeded) {
+            this._failures.incrementAndGet();
+         }
+      }
    }// end executeUpdate
 
    /**
@@ -102,37 +374,48 @@ public class Cafe {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult(String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery(query);
-
-      /*
-       ** obtains the metadata object for the returned result set. The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData();
-      int numCol = rsmd.getColumnCount();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()) {
-         if (outputHeader) {
-            for (int i = 1; i <= numCol; i++) {
-               System.out.print(rsmd.getColumnName(i) + "\t");
+      Connection connection = this.getConnection();
+      this._roundTrips.incrementAndGet();
+      boolean succeeded = false;
+      try {
+         // creates a statement object
+         Statement stmt = connection.createStatement();
+
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery(query);
+
+         /*
+          ** obtains the metadata object for the returned result set. The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData();
+         int numCol = rsmd.getColumnCount();
+         int rowCount = 0;
+
+         // iterates through the result set and output them to standard out.
+         boolean outputHeader = true;
+         while (rs.next()) {
+            if (outputHeader) {
+               for (int i = 1; i <= numCol; i++) {
+                  System.out.print(rsmd.getColumnName(i) + "\t");
+               }
+               System.out.println();
+               outputHeader = false;
             }
+            for (int i = 1; i <= numCol; ++i)
+               System.out.print(rs.getString(i) + "\t");
             System.out.println();
-            outputHeader = false;
-         }
-         for (int i = 1; i <= numCol; ++i)
-            System.out.print(rs.getString(i) + "\t");
-         System.out.println();
-         ++rowCount;
-      } // end while
-      stmt.close();
-      return rowCount;
+            ++rowCount;
+         } // end while
+         stmt.close();
+         succeeded = true;
+         ReportStartupTime("first query");
+         return rowCount;
+      } finally {
+         if (!succeeded) {
+            this._failures.incrementAndGet();
+         }
+      }
    }// end executeQuery
 
    /**
@@ -145,31 +428,46 @@ public class Cafe {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult(String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery(query);
+      return this.executeQueryAndReturnResult(query, this._currentShard);
+   }// end executeQueryAndReturnResult
 
-      /*
-       ** obtains the metadata object for the returned result set. The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData();
-      int numCol = rsmd.getColumnCount();
-      int rowCount = 0;
-
-      // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
-      List<List<String>> result = new ArrayList<List<String>>();
-      while (rs.next()) {
-         List<String> record = new ArrayList<String>();
-         for (int i = 1; i <= numCol; ++i)
-            record.add(rs.getString(i));
-         result.add(record);
-      } // end while
-      stmt.close();
-      return result;
+   private List<List<String>> executeQueryAndReturnResult(String query, int shard) throws SQLException {
+      Connection connection = this.getConnection(shard);
+      this._roundTrips.incrementAndGet();
+      boolean succeeded = false;
+      try {
+         // creates a statement object
+         Statement stmt = connection.createStatement();
+
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery(query);
+
+         /*
+          ** obtains the metadata object for the returned result set. The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData();
+         int numCol = rsmd.getColumnCount();
+         int rowCount = 0;
+
+         // iterates through the result set and saves the data returned by the query.
+         boolean outputHeader = false;
+         List<List<String>> result = new ArrayList<List<String>>();
+         while (rs.next()) {
+            List<String> record = new ArrayList<String>();
+            for (int i = 1; i <= numCol; ++i)
+               record.add(rs.getString(i));
+            result.add(record);
+         } // end while
+         stmt.close();
+         succeeded = true;
+         ReportStartupTime("first query");
+         return result;
+      } finally {
+         if (!succeeded) {
+            this._failures.incrementAndGet();
+         }
+      }
    }// end executeQueryAndReturnResult
 
    /**
@@ -181,22 +479,308 @@ public class Cafe {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQuery(String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement();
+      Connection connection = this.getConnection();
+      this._roundTrips.incrementAndGet();
+      boolean succeeded = false;
+      try {
+         // creates a statement object
+         Statement stmt = connection.createStatement();
+
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery(query);
+
+         int rowCount = 0;
+
+         // iterates through the result set and count nuber of results.
+         while (rs.next()) {
+            rowCount++;
+         } // end while
+         stmt.close();
+         succeeded = true;
+         ReportStartupTime("first query");
+         return rowCount;
+      } finally {
+         if (!succeeded) {
+            this._failures.incrementAndGet();
+         }
+      }
+   }
+
+   /**
+    * Method to execute an update SQL statement on every shard, e.g. to keep
+    * the menu the same in every store database. The statement runs in a
+    * transaction on every shard first, and the transactions are committed
+    * only once it succeeded on all of them. A shard whose commit fails is
+    * retried once on a new connection.
+    *
+    * @param sql the input SQL string
+    * @throws java.sql.SQLException when the update failed on any shard, with
+    *         the shards it was applied on and the ones it was not
+    */
+   public void executeUpdateOnAllShards(String sql) throws SQLException {
+      Connection[] connections = new Connection[this._urls.length];
+      try {
+         // run it everywhere, without committing
+         for (int shard = 0; shard < this._urls.length; shard++) {
+            Connection connection = this.getConnection(shard);
+            this._roundTrips.incrementAndGet();
+            boolean succeeded = false;
+            try {
+               connection.setAutoCommit(false);
+               connections[shard] = connection;
+               Statement stmt = connection.createStatement();
+               stmt.executeUpdate(sql);
+               stmt.close();
+               succeeded = true;
+            } finally {
+               if (!succeeded) {
+                  this._failures.incrementAndGet();
+               }
+            }
+         } // end for
+      } catch (SQLException e) {
+         for (int shard = 0; shard < connections.length; shard++) {
+            if (connections[shard] != null) {
+               try {
+                  connections[shard].rollback();
+                  connections[shard].setAutoCommit(true);
+               } catch (SQLException rollbackFailed) {
+                  // the transaction died with the connection
+                  this.reconnect(shard);
+               }
+            }
+         } // end for
+         throw new SQLException("Not applied on any shard: " + e.getMessage());
+      }
+
+      // then commit everywhere
+      List<String> applied = new ArrayList<String>();
+      List<String> failed = new ArrayList<String>();
+      for (int shard = 0; shard < connections.length; shard++) {
+         this._roundTrips.incrementAndGet();
+         try {
+            connections[shard].commit();
+            connections[shard].setAutoCommit(true);
+            applied.add(this._urls[shard]);
+         } catch (SQLException e) {
+            // the connection broke before the commit, apply it again on a new one.
+            // Should the commit have gone through after all, the retry of an
+            // insert fails on its key and the shard is reported as failed.
+            this.reconnect(shard);
+            try {
+               this.executeUpdate(sql, shard);
+               applied.add(this._urls[shard]);
+            } catch (SQLException retryFailed) {
+               failed.add(this._urls[shard] + " (" + retryFailed.getMessage() + ")");
+            }
+         }
+      } // end for
+      if (!failed.isEmpty()) {
+         throw new SQLException("Applied on " + applied + " but not on " + failed);
+      }
+   }// end executeUpdateOnAllShards
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) on every
+    * shard in parallel and merge the results into one list of records. The
+    * index of the shard a record came from is appended as its last attribute.
+    *
+    * @param query the input query string
+    * @param order the order of the merged records, or null to keep them by shard
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryOnAllShardsAndReturnResult(String query, Comparator<List<String>> order) throws SQLException {
+      // scatter
+      List<CompletableFuture<List<List<String>>>> parts = new ArrayList<CompletableFuture<List<List<String>>>>();
+      for (int shard = 0; shard < this._urls.length; shard++) {
+         final int target = shard;
+         parts.add(CompletableFuture.supplyAsync(() -> {
+            try {
+               return this.executeQueryAndReturnResult(query, target);
+            } catch (SQLException e) {
+               throw new CompletionException(e);
+            }
+         }));
+      } // end for
+
+      // gather
+      List<List<String>> result = new ArrayList<List<String>>();
+      for (int shard = 0; shard < parts.size(); shard++) {
+         List<List<String>> part;
+         try {
+            part = parts.get(shard).join();
+         } catch (CompletionException e) {
+            if (e.getCause() instanceof SQLException) {
+               throw (SQLException) e.getCause();
+            }
+            throw e;
+         }
+         for (List<String> record : part) {
+            record.add(String.valueOf(shard));
+            result.add(record);
+         } // end for
+      } // end for
+      if (order != null) {
+         result.sort(order);
+      }
+      return result;
+   }// end executeQueryOnAllShardsAndReturnResult
+
+   /**
+    * Method to stream the result of an input query SQL instruction (i.e. SELECT)
+    * to a writer as CSV. The query is run through a server side cursor and
+    * fetched in batches, so memory use stays constant no matter how many rows
+    * the query returns.
+    *
+    * @param query the input query string
+    * @param fetchSize the number of rows fetched per round trip
+    * @param out the writer the CSV rows are written to
+    * @param header whether to write the column names first
+    * @return the number of rows written
+    * @throws java.sql.SQLException when failed to execute the query
+    * @throws java.io.IOException when failed to write the output
+    */
+   public int executeQueryAndStreamCsv(String query, int fetchSize, Writer out, boolean header) throws SQLException, IOException {
+      return this.executeQueryAndStreamCsv(this.getConnection(), query, fetchSize, out, header);
+   }// end executeQueryAndStreamCsv
+
+   /*
+    * Streams a query like executeQueryAndStreamCsv on the given connection,
+    * e.g. one opened with openConnection to export in parallel.
+    **/
+   private int executeQueryAndStreamCsv(Connection connection, String query, int fetchSize, Writer out, boolean header) throws SQLException, IOException {
+      this._roundTrips.incrementAndGet();
+      boolean succeeded = false;
+      try {
+         boolean autoCommit = connection.getAutoCommit();
+         // cursors only live inside a transaction
+         connection.setAutoCommit(false);
+         Statement stmt = connection.createStatement();
+         int rowCount = 0;
+         try {
+            stmt.executeUpdate("DECLARE export_cursor NO SCROLL CURSOR FOR " + query);
+
+            boolean outputHeader = header;
+            String fetch = String.format("FETCH FORWARD %d FROM export_cursor", fetchSize);
+            while (true) {
+               ResultSet rs = stmt.executeQuery(fetch);
+               this._roundTrips.incrementAndGet();
+               ResultSetMetaData rsmd = rs.getMetaData();
+               int numCol = rsmd.getColumnCount();
+               if (outputHeader) {
+                  for (int i = 1; i <= numCol; i++) {
+                     if (i > 1) out.write(',');
+                     out.write(CsvField(rsmd.getColumnName(i)));
+                  }
+                  out.write('\n');
+                  outputHeader = false;
+               }
+               int fetched = 0;
+               while (rs.next()) {
+                  for (int i = 1; i <= numCol; ++i) {
+                     if (i > 1) out.write(',');
+                     out.write(CsvField(rs.getString(i)));
+                  }
+                  out.write('\n');
+                  ++fetched;
+               } // end while
+               rs.close();
+               rowCount += fetched;
+               if (fetched < fetchSize) break;
+            } // end while
+
+            stmt.executeUpdate("CLOSE export_cursor");
+            this._roundTrips.incrementAndGet();
+            connection.commit();
+         } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+         } finally {
+            stmt.close();
+            connection.setAutoCommit(autoCommit);
+            ReportStartupTime("first query");
+         }
+         succeeded = true;
+         return rowCount;
+      } finally {
+         if (!succeeded) {
+            this._failures.incrementAndGet();
+         }
+      }
+   }// end executeQueryAndStreamCsv
+
+   /*
+    * Quotes a value for CSV output. The fixed width char columns are padded
+    * with spaces, so they are stripped first.
+    **/
+   private static String CsvField(String value) {
+      if (value == null) {
+         return "";
+      }
+      value = value.strip();
+      if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+         return value;
+      }
+      return "\"" + value.replace("\"", "\"\"") + "\"";
+   }
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery(query);
+   /**
+    * Method to admit an operation, e.g. placing an order, on the current
+    * shard before it sends its statements. The operation holds its slot until
+    * the returned admission is closed, so it is never shed half way through.
+    *
+    * @param operation the name of the operation, its latency is tracked by name
+    * @param priority the priority of the operation
+    * @return the admission, to close once the operation is finished
+    * @throws java.sql.SQLException when the operation is shed or the database
+    *         can not be reached
+    */
+   public Admission admit(String operation, Priority priority) throws SQLException {
+      return this.admit(operation, priority, this._currentShard, this._currentShard + 1);
+   }// end admit
 
-      int rowCount = 0;
+   /**
+    * Method to admit an operation that reads or writes every shard, e.g. a
+    * report, on every shard.
+    *
+    * @param operation the name of the operation, its latency is tracked by name
+    * @param priority the priority of the operation
+    * @return the admission, to close once the operation is finished
+    * @throws java.sql.SQLException when the operation is shed or a database
+    *         can not be reached
+    */
+   public Admission admitOnAllShards(String operation, Priority priority) throws SQLException {
+      return this.admit(operation, priority, 0, this._urls.length);
+   }// end admitOnAllShards
 
-      // iterates through the result set and count nuber of results.
-      while (rs.next()) {
-         rowCount++;
-      } // end while
-      stmt.close();
-      return rowCount;
+   private Admission admit(String operation, Priority priority, int firstShard, int endShard) throws SQLException {
+      Admission admission = new Admission(this._admission, operation);
+      try {
+         for (int shard = firstShard; shard < endShard; shard++) {
+            Connection connection = this.getConnection(shard);
+            admission.add(connection, this._admission.acquire(connection, priority));
+         }
+      } catch (SQLException e) {
+         admission.close();
+         throw e;
+      }
+      admission.start();
+      return admission;
    }
 
+   /**
+    * Method to print the admission control counters of this terminal, and
+    * the slots in use and waiting across all terminals, to standard out.
+    */
+   public void PrintAdmissionMetrics() {
+      try {
+         this._admission.printMetrics(this.getConnection());
+      } catch (SQLException e) {
+         System.err.println(e.getMessage());
+      } // end try
+   }// end PrintAdmissionMetrics
+
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current
@@ -207,25 +791,46 @@ public class Cafe {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-      Statement stmt = this._connection.createStatement();
-
-      ResultSet rs = stmt.executeQuery(String.format("Select currval('%s')", sequence));
-      if (rs.next())
-         return rs.getInt(1);
-      return -1;
+      Connection connection = this.getConnection();
+      this._roundTrips.incrementAndGet();
+      boolean succeeded = false;
+      try {
+         Statement stmt = connection.createStatement();
+
+         ResultSet rs = stmt.executeQuery(String.format("Select currval('%s')", sequence));
+         succeeded = true;
+         ReportStartupTime("first query");
+         if (rs.next())
+            return rs.getInt(1);
+         return -1;
+      } finally {
+         if (!succeeded) {
+            this._failures.incrementAndGet();
+         }
+      }
    }
 
    /**
-    * Method to close the physical connection if it is open.
+    * Method to close the physical connections if they are open.
     */
    public void cleanup() {
-      try {
-         if (this._connection != null) {
-            this._connection.close();
-         } // end if
-      } catch (SQLException e) {
-         // ignored.
-      } // end try
+      if (this._journal != null) {
+         this._journal.close();
+      } // end if
+      for (int shard = 0; shard < this._connections.length; shard++) {
+         try {
+            if (this._connections[shard] == null) {
+               // the connection was never used, close it if it is open
+               this._connections[shard] = this._pendingConnections.get(shard).getNow(null);
+               this._pendingConnections.get(shard).cancel(false);
+            } // end if
+            if (this._connections[shard] != null) {
+               this._connections[shard].close();
+            } // end if
+         } catch (Exception e) {
+            // ignored.
+         } // end try
+      } // end for
    }// end cleanup
 
    /**
@@ -235,22 +840,33 @@ public class Cafe {
     *             file>
     */
    public static void main(String[] args) {
+      if (args.length == 6 && args[0].equals("--rtt-bench")) {
+         RunLatencyScenarios(args[1], args[2], args[3], args[4], args[5]);
+         return;
+      } // end if
+      if ((args.length == 1 || args.length == 4) && args[0].equals("--journal-selftest")) {
+         System.exit(RunJournalSelfTest(Arrays.copyOfRange(args, 1, args.length)) ? 0 : 1);
+      } // end if
       if (args.length != 3) {
          System.err.println(
                "Usage: " +
                      "java [-classpath <classpath>] " +
                      Cafe.class.getName() +
-                     " <dbname> <port> <user>");
+                     " <dbname> <port> <user>\n" +
+                     "   or: java [-classpath <classpath>] " +
+                     Cafe.class.getName() +
+                     " --rtt-bench <dbname> <port> <user> <login> <password>\n" +
+                     "   or: java [-classpath <classpath>] " +
+                     Cafe.class.getName() +
+                     " --journal-selftest [<dbname> <port> <user>]");
          return;
       } // end if
 
       Greeting();
       Cafe esql = null;
       try {
-         // use postgres JDBC driver.
-         Class.forName("org.postgresql.Driver").newInstance();
-         // instantiate the Cafe object and creates a physical
-         // connection.
+         // instantiate the Cafe object, the physical connection is
+         // created in the background.
          String dbname = args[0];
          String dbport = args[1];
          String user = args[2];
@@ -280,9 +896,16 @@ public class Cafe {
                   break;
             }// end switch
             if (authorisedUser != null) {
-               boolean isManager = IsManager(esql);
+               boolean isManager = false;
+               try {
+                  isManager = IsManager(esql);
+               } catch (SQLException e) {
+                  // logged in offline, the manager options need the database anyway
+                  System.err.println(e.getMessage());
+               }
                boolean usermenu = true;
                while (usermenu) {
+                  esql.useShardForLogin(esql.CurrentlyloggedInUser);
                   System.out.println("MAIN MENU");
                   System.out.println("---------");
                   System.out.println("1. Goto Menu");
@@ -294,7 +917,14 @@ public class Cafe {
                   {
                      System.out.println("6. List all unpaid orders in the last 24h (managers only)");
                      System.out.println("7. Change an order's status to paid (managers only)");
+                     System.out.println("8. Export orders to CSV (managers only)");
+                     System.out.println("12. Show admission control metrics (managers only)");
+                     System.out.println("13. Settle unpaid orders in bulk (managers only)");
+                     System.out.println("14. Live dashboard of today's orders (managers only)");
                   }
+                  System.out.println("10. Reorder one of your previous orders");
+                  System.out.println("11. Order your favorite items");
+                  System.out.println("15. Browse your order history");
                   System.out.println(".........................");
                   System.out.println("9. Log out");
                   switch (readChoice()) {
@@ -325,6 +955,39 @@ public class Cafe {
                            ChangeUnpaidOrderToPaid(esql);
                         }
                         break;
+                     case 8:
+                        if (AllowOnlyManager(esql)) 
+                        {
+                           ExportOrders(esql);
+                        }
+                        break;
+                     case 10:
+                        Reorder(esql);
+                        break;
+                     case 11:
+                        OrderFavoriteItems(esql);
+                        break;
+                     case 15:
+                        BrowseOrderHistory(esql);
+                        break;
+                     case 12:
+                        if (AllowOnlyManager(esql)) 
+                        {
+                           esql.PrintAdmissionMetrics();
+                        }
+                        break;
+                     case 13:
+                        if (AllowOnlyManager(esql)) 
+                        {
+                           SettleUnpaidOrders(esql);
+                        }
+                        break;
+                     case 14:
+                        if (AllowOnlyManager(esql)) 
+                        {
+                           Dashboard(esql);
+                        }
+                        break;
                      case 9:
                         usermenu = false;
                         break;
@@ -351,39 +1014,292 @@ public class Cafe {
       } // end try
    }// end main
 
-   public static void Greeting() {
-      System.out.println(
-            "\n\n*******************************************************\n" +
-                  "              User Interface      	               \n" +
-                  "*******************************************************\n");
-   }// end Greeting
-
    /*
-    * Reads the users choice given from the keyboard
-    * 
-    * @int
+    * Prints the time since launch the first time each milestone is reached,
+    * when run with -Dcafe.startupTiming=true. The launch time is passed in
+    * -Dcafe.launchedAt (epoch millis) by scripts/startup_bench.sh, otherwise
+    * the time Cafe was loaded is used.
     **/
-   public static int readChoice() {
-      int input;
-      // returns only if a correct value is given.
-      do {
-         System.out.print("Please make your choice: ");
-         try { // read the integer, parse it and break.
-            input = Integer.parseInt(in.readLine());
-            break;
-         } catch (Exception e) {
-            System.out.println("Your input is invalid!");
-            continue;
-         } // end try
-      } while (true);
-      return input;
-   }// end readChoice
+   private static synchronized void ReportStartupTime(String milestone) {
+      if (!startupTiming || !reportedMilestones.add(milestone)) {
+         return;
+      }
+      long started = Long.getLong("cafe.launchedAt", classLoadedAt);
+      System.err.println("[startup] time to " + milestone + ": " + (System.currentTimeMillis() - started) + " ms");
+   }
 
-   /*
-    * Creates a new user with privided login, passowrd and phoneNum
-    **/
-   public static void CreateUser(Cafe esql) {
-      try {
+   /**
+    * Runs the main workflows through a LatencyProxy at several round trip
+    * times and prints the number of statements and the time each workflow
+    * took. The workflows read their input from a script instead of the
+    * keyboard, and they place real orders for the given login.
+    *
+    * The proxy is configured with system properties:
+    * cafe.bench.rtts (ms, default 0,1,5,20,50), cafe.bench.jitter (ms),
+    * cafe.bench.bandwidth (bytes per second, 0 for unlimited) and
+    * cafe.bench.drop (probability of dropping the connection per packet).
+    */
+   public static void RunLatencyScenarios(String dbname, String dbport, String user, String login, String password) {
+      String host = System.getProperty("cafe.host", "localhost");
+      int jitter = Integer.getInteger("cafe.bench.jitter", 0);
+      long bandwidth = Long.getLong("cafe.bench.bandwidth", 0L);
+      double drop = Double.parseDouble(System.getProperty("cafe.bench.drop", "0"));
+      PrintStream console = System.out;
+      String journal = System.getProperty("cafe.journal");
+
+      // the bench login is not remembered for offline use, and the orders the
+      // workflows take offline go to a throwaway journal rather than the
+      // terminal's own one
+      rememberLogins = false;
+      File benchDirectory;
+      try {
+         benchDirectory = Files.createTempDirectory("cafe-bench").toFile();
+      } catch (IOException e) {
+         System.err.println(e.getMessage());
+         return;
+      }
+      System.setProperty("cafe.journal", new File(benchDirectory, "orders.journal").getPath());
+
+      console.println(String.format("%8s  %-24s %12s %12s %9s", "RTT (ms)", "Workflow", "Round trips", "Time (ms)", "Failures"));
+      for (String rtt : System.getProperty("cafe.bench.rtts", "0,1,5,20,50").split(",")) {
+         int rttMillis = Integer.parseInt(rtt.strip());
+         Cafe esql = null;
+         String lastOrderId = null;
+         try (LatencyProxy proxy = new LatencyProxy(host, Integer.parseInt(dbport), rttMillis / 2, jitter, bandwidth, drop)) {
+            // the workflows' own output is not part of the report
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            System.setProperty("cafe.host", proxy.getHost());
+            esql = new Cafe(dbname, String.valueOf(proxy.getPort()), user, "");
+            System.setProperty("cafe.host", host);
+            final Cafe session = esql;
+
+            RunScenario(console, rttMillis, "Log in", esql, login + "\n" + password + "\n", () -> LogIn(session));
+            session.useShardForLogin(login);
+            // the orders after this one are the bench's, they are removed below
+            lastOrderId = esql.executeQueryAndReturnResult(String.format("SELECT COALESCE(MAX(orderid), 0) FROM Orders WHERE login = '%s'", login)).get(0).get(0);
+            List<List<String>> menu = esql.executeQueryAndReturnResult("SELECT itemName FROM Menu ORDER BY itemName LIMIT 3");
+            StringBuilder items = new StringBuilder();
+            for (List<String> item : menu) {
+               items.append(item.get(0).strip()).append("\n").append("no sugar\n");
+            }
+            RunScenario(console, rttMillis, "Place order (3 items)", esql, items + "\n", () -> PlaceOrder(session));
+            String orderId = esql.executeQueryAndReturnResult(String.format("SELECT MAX(orderid) FROM Orders WHERE login = '%s'", login)).get(0).get(0);
+            RunScenario(console, rttMillis, "Update order", esql, orderId + "\n3\n3\n3\n\n", () -> UpdateOrder(session));
+            RunScenario(console, rttMillis, "Reorder", esql, orderId + "\n", () -> Reorder(session));
+            RunScenario(console, rttMillis, "List last five orders", esql, "", () -> ListLastFiveOrders(session));
+            RunScenario(console, rttMillis, "Unpaid orders (24h)", esql, "", () -> GetUnpaidOrdersInTheLast24Hours(session));
+         } catch (Exception e) {
+            System.err.println(e.getMessage());
+         } finally {
+            System.setOut(console);
+            System.setProperty("cafe.host", host);
+            if (esql != null) {
+               if (lastOrderId != null) {
+                  // stop the forwarder first so no journaled order lands after
+                  // the delete, their item statuses are removed with them
+                  if (esql._journal != null) {
+                     esql._journal.close();
+                  }
+                  try {
+                     esql.useShardForLogin(login);
+                     esql.executeUpdate(String.format("DELETE FROM Orders WHERE login = '%s' AND orderid > %s", login, lastOrderId));
+                  } catch (SQLException e) {
+                     System.err.println("Unable to remove the orders placed by the bench after order " + lastOrderId + ": " + e.getMessage());
+                  }
+               }
+               esql.cleanup();
+            }
+         }
+      }
+
+      // orders still in the throwaway journal are dropped with it
+      if (journal == null) {
+         System.clearProperty("cafe.journal");
+      } else {
+         System.setProperty("cafe.journal", journal);
+      }
+      for (File file : benchDirectory.listFiles()) {
+         file.delete();
+      }
+      benchDirectory.delete();
+   }
+
+   /*
+    * Runs one workflow with the given keyboard input and prints a line of
+    * the latency report for it. The workflows report errors and carry on,
+    * so the statements that failed are counted to tell a failed workflow
+    * from a fast one. After a failure the connections are reopened, e.g.
+    * after the proxy dropped them, before the next workflow starts.
+    **/
+   private static void RunScenario(PrintStream console, int rttMillis, String name, Cafe esql, String input, Runnable workflow) {
+      BufferedReader keyboard = in;
+      in = new BufferedReader(new StringReader(input));
+      long roundTrips = esql._roundTrips.get();
+      long failures = esql._failures.get();
+      long start = System.nanoTime();
+      try {
+         workflow.run();
+      } finally {
+         in = keyboard;
+      }
+      long elapsed = (System.nanoTime() - start) / 1000000;
+      failures = esql._failures.get() - failures;
+      console.println(String.format("%8d  %-24s %12d %12d %9d", rttMillis, name, esql._roundTrips.get() - roundTrips, elapsed, failures));
+      if (failures > 0) {
+         for (int shard = 0; shard < esql.getShardCount(); shard++) {
+            esql.reconnect(shard);
+         }
+         // wait for the new connections outside of the next workflow's time
+         for (int shard = 0; shard < esql.getShardCount(); shard++) {
+            try {
+               esql.getConnection(shard);
+            } catch (SQLException e) {
+               System.err.println(e.getMessage());
+            }
+         }
+      }
+   }
+
+   /**
+    * Checks the offline order journal against a throwaway journal file:
+    * records survive a reopen, a record torn before its length was written
+    * is dropped on recovery, compaction keeps only the pending records, and
+    * a record forwarded twice creates one order. The last check needs a
+    * database; it is skipped when none is given, and rolled back otherwise.
+    *
+    * @param dbArgs empty, or the dbname, port and user of the database
+    * @return true when every check passed
+    */
+   public static boolean RunJournalSelfTest(String[] dbArgs) {
+      boolean passed = true;
+      File directory = null;
+      try {
+         directory = Files.createTempDirectory("cafe-journal").toFile();
+         File file = new File(directory, "orders.journal");
+         Timestamp now = new Timestamp(System.currentTimeMillis());
+         List<String[]> items = new ArrayList<String[]>();
+         items.add(new String[] { "Hot Coffee", "no sugar" });
+
+         // append then reopen
+         OrderJournal journal = OrderJournal.open(file);
+         String firstKey = journal.append("first", now, items);
+         String secondKey = journal.append("second", now, items);
+         journal.close();
+         journal = OrderJournal.open(file);
+         passed &= Check("append then reopen", journal.pendingCount() == 2
+               && journal.read(journal.pending.get(0))[0].startsWith(firstKey)
+               && journal.read(journal.pending.get(1))[0].startsWith(secondKey));
+
+         // a record whose length never reached the disk
+         int tornPosition = journal.writePosition;
+         journal.close();
+         try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            ByteBuffer torn = ByteBuffer.allocate(OrderJournal.HEADER + 16);
+            torn.putInt(0).put(OrderJournal.PENDING).put("torn-torn-torn!!".getBytes(StandardCharsets.UTF_8)).flip();
+            channel.write(torn, tornPosition);
+         }
+         journal = OrderJournal.open(file);
+         boolean tornDropped = journal.pendingCount() == 2 && journal.writePosition == tornPosition;
+         String thirdKey = journal.append("third", now, items);
+         journal.close();
+         journal = OrderJournal.open(file);
+         passed &= Check("torn record dropped on recovery", tornDropped && journal.pendingCount() == 3
+               && journal.read(journal.pending.get(2))[0].startsWith(thirdKey));
+
+         // compaction
+         journal.markForwarded(journal.pending.get(0));
+         journal.compact();
+         journal.close();
+         journal = OrderJournal.open(file);
+         boolean onlyPending = journal.pendingCount() == 2 && journal.pending.get(0) == 0;
+         for (int position : journal.pending) {
+            onlyPending &= journal.buffer.get(position + 4) == OrderJournal.PENDING;
+         }
+         passed &= Check("compaction keeps only pending records", onlyPending
+               && journal.read(journal.pending.get(0))[0].startsWith(secondKey)
+               && journal.read(journal.pending.get(1))[0].startsWith(thirdKey));
+         journal.close();
+
+         // forwarding the same record twice
+         if (dbArgs.length == 0) {
+            System.out.println("SKIP record forwarded twice is skipped by its key (no database given)");
+         } else {
+            Class.forName("org.postgresql.Driver");
+            String url = "jdbc:postgresql://" + System.getProperty("cafe.host", "localhost") + ":" + dbArgs[1] + "/" + dbArgs[0].split(",")[0].strip();
+            try (Connection connection = DriverManager.getConnection(url, dbArgs[2], "")) {
+               connection.setAutoCommit(false);
+               Statement stmt = connection.createStatement();
+               ResultSet rs = stmt.executeQuery("SELECT (SELECT login FROM Users LIMIT 1), (SELECT itemName FROM Menu LIMIT 1)");
+               rs.next();
+               List<String[]> menuItems = new ArrayList<String[]>();
+               menuItems.add(new String[] { rs.getString(2).strip(), "" });
+               journal = OrderJournal.open(file);
+               String key = journal.append(rs.getString(1).strip(), now, menuItems);
+               String[] record = journal.read(journal.pending.get(journal.pending.size() - 1));
+               journal.close();
+               OrderJournal.forward(connection, record);
+               OrderJournal.forward(connection, record);
+               rs = stmt.executeQuery(String.format("SELECT COUNT(*) FROM Orders WHERE journalKey = '%s'", key));
+               rs.next();
+               passed &= Check("record forwarded twice is skipped by its key", rs.getInt(1) == 1);
+               stmt.close();
+               connection.rollback();
+            }
+         }
+      } catch (Exception e) {
+         System.out.println("FAIL " + e);
+         passed = false;
+      } finally {
+         if (directory != null) {
+            for (File file : directory.listFiles()) {
+               file.delete();
+            }
+            directory.delete();
+         }
+      }
+      System.out.println(passed ? "Journal self test passed" : "Journal self test FAILED");
+      return passed;
+   }
+
+   private static boolean Check(String name, boolean passed) {
+      System.out.println((passed ? "PASS " : "FAIL ") + name);
+      return passed;
+   }
+
+   public static void Greeting() {
+      System.out.println(
+            "\n\n*******************************************************\n" +
+                  "              User Interface      	               \n" +
+                  "*******************************************************\n");
+   }// end Greeting
+
+   /*
+    * Reads the users choice given from the keyboard
+    * 
+    * @int
+    **/
+   public static int readChoice() {
+      int input;
+      // returns only if a correct value is given.
+      do {
+         System.out.print("Please make your choice: ");
+         ReportStartupTime("first prompt");
+         try { // read the integer, parse it and break.
+            input = Integer.parseInt(in.readLine());
+            break;
+         } catch (Exception e) {
+            System.out.println("Your input is invalid!");
+            continue;
+         } // end try
+      } while (true);
+      return input;
+   }// end readChoice
+
+   /*
+    * Creates a new user with privided login, passowrd and phoneNum
+    **/
+   public static void CreateUser(Cafe esql) {
+      try {
          System.out.print("\tEnter user login: ");
          String login = in.readLine();
          System.out.print("\tEnter user password: ");
@@ -398,6 +1314,7 @@ public class Cafe {
                "INSERT INTO USERS (phoneNum, login, password, favItems, type) VALUES ('%s','%s','%s','%s','%s')", phone,
                login, password, favItems, type);
 
+         esql.useShardForLogin(login);
          esql.executeUpdate(query);
          System.out.println("User successfully created!");
       } catch (Exception e) {
@@ -418,12 +1335,28 @@ public class Cafe {
          String password = in.readLine();
 
          String query = String.format("SELECT * FROM USERS WHERE login = '%s' AND password = '%s'", login, password);
-         int userNum = esql.executeQuery(query);
+         esql.useShardForLogin(login);
+         int userNum;
+         try {
+            userNum = esql.executeQuery(query);
+         } catch (SQLException e) {
+            // The database is unreachable, users who logged in here before can still take orders
+            if (!CheckCachedLogin(login, password)) {
+               throw e;
+            }
+            System.err.println(e.getMessage());
+            System.out.println("Logged in offline, orders are kept on this terminal until the database is back");
+            esql.CurrentlyloggedInUser = login.strip();
+            return login;
+         }
          if (userNum > 0) 
          {
             esql.CurrentlyloggedInUser = login.strip();
+            CacheLogin(login, password);
             return login;
          }
+         // the password changed or the user is gone, stop accepting it offline
+         ForgetLogin(login);
          return null;
       } catch (Exception e) {
          System.err.println(e.getMessage());
@@ -431,6 +1364,112 @@ public class Cafe {
       }
    }// end
 
+   /*
+    * Remembers a salted PBKDF2 hash of the password of a user who logged in,
+    * for CheckCachedLogin.
+    **/
+   private static synchronized void CacheLogin(String login, String password) {
+      if (!rememberLogins) {
+         return;
+      }
+      try {
+         Properties logins = ReadLoginCache();
+         byte[] salt = new byte[16];
+         new SecureRandom().nextBytes(salt);
+         Base64.Encoder base64 = Base64.getEncoder();
+         logins.setProperty(login.strip(), LOGIN_CACHE_ITERATIONS + ":" + base64.encodeToString(salt) + ":"
+               + base64.encodeToString(HashPassword(salt, password, LOGIN_CACHE_ITERATIONS)));
+         StoreLoginCache(logins);
+      } catch (IOException | GeneralSecurityException e) {
+         // only offline logins are affected
+         System.err.println("Unable to remember the login for offline use: " + e.getMessage());
+      }
+   }
+
+   /*
+    * Drops a remembered login, so a changed password or a removed user can no
+    * longer be used offline.
+    **/
+   private static synchronized void ForgetLogin(String login) {
+      if (!rememberLogins) {
+         return;
+      }
+      try {
+         Properties logins = ReadLoginCache();
+         if (logins.remove(login.strip()) != null) {
+            StoreLoginCache(logins);
+         }
+      } catch (IOException e) {
+         System.err.println("Unable to forget the login for offline use: " + e.getMessage());
+      }
+   }
+
+   /*
+    * Checks a login against the ones remembered by CacheLogin.
+    **/
+   private static synchronized boolean CheckCachedLogin(String login, String password) {
+      try {
+         String entry = ReadLoginCache().getProperty(login.strip());
+         if (entry == null) {
+            return false;
+         }
+         String[] parts = entry.split(":");
+         Base64.Decoder base64 = Base64.getDecoder();
+         return MessageDigest.isEqual(base64.decode(parts[2]),
+               HashPassword(base64.decode(parts[1]), password, Integer.parseInt(parts[0])));
+      } catch (IOException | GeneralSecurityException | IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+         // entries written by older versions are simply not usable offline
+         return false;
+      }
+   }
+
+   private static Properties ReadLoginCache() throws IOException {
+      Properties logins = new Properties();
+      if (loginCache.exists()) {
+         try (FileReader reader = new FileReader(loginCache)) {
+            logins.load(reader);
+         }
+      }
+      return logins;
+   }
+
+   /*
+    * Writes the cache to a file only the owner can read and moves it over the
+    * old one, which also tightens a cache created under the default umask.
+    **/
+   private static void StoreLoginCache(Properties logins) throws IOException {
+      Path directory = loginCache.getAbsoluteFile().toPath().getParent();
+      Path temp;
+      try {
+         temp = Files.createTempFile(directory, loginCache.getName(), ".tmp",
+               PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+      } catch (UnsupportedOperationException e) {
+         temp = Files.createTempFile(directory, loginCache.getName(), ".tmp");
+         File file = temp.toFile();
+         file.setReadable(false, false);
+         file.setWritable(false, false);
+         file.setReadable(true, true);
+         file.setWritable(true, true);
+      }
+      try {
+         try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            logins.store(out, "Cafe logins for offline use");
+         }
+         Files.move(temp, loginCache.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } finally {
+         Files.deleteIfExists(temp);
+      }
+   }
+
+   private static byte[] HashPassword(byte[] salt, String password, int iterations) throws GeneralSecurityException {
+      PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, 256);
+      try {
+         return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+      } finally {
+         spec.clearPassword();
+      }
+   }
+
    // Rest of the functions definition go in here
 
    public static void Menu(Cafe esql) {
@@ -556,7 +1595,7 @@ public class Cafe {
          System.out.print("\tEnter menu item name: ");
          String menuItemName = in.readLine();
          String query = String.format("DELETE FROM MENU WHERE itemName = '%s'", menuItemName);
-         esql.executeUpdate(query);
+         esql.executeUpdateOnAllShards(query);
          System.out.println("Item with name " + menuItemName + " deleted");
       } catch (Exception e) {
          System.err.println(e.getMessage());
@@ -576,7 +1615,7 @@ public class Cafe {
          System.out.print("\tEnter new image url: ");
          String newImageURL = in.readLine();
          String query = String.format("UPDATE MENU SET price = '%s', description = '%s', imageURL = '%s' WHERE itemName = '%s'", newItemPrice, newItemDescription, newImageURL, menuItemName);
-         esql.executeUpdate(query);
+         esql.executeUpdateOnAllShards(query);
          System.out.println("Item with name " + menuItemName + " updated");
       } catch (Exception e) {
          System.err.println(e.getMessage());
@@ -596,7 +1635,7 @@ public class Cafe {
          System.out.print("\tEnter item image url: ");
          String imageURL = in.readLine();
          String query = String.format("INSERT INTO MENU (itemName, type, price, description, imageURL) VALUES ('%s','%s','%s','%s','%s')", itemName, itemType, itemPrice, itemDescription, imageURL);
-         esql.executeUpdate(query);
+         esql.executeUpdateOnAllShards(query);
          System.out.println("Item with name " + itemName + " added");
       } catch (Exception e) {
          System.err.println(e.getMessage());
@@ -688,7 +1727,14 @@ public class Cafe {
          }
 
          String query = String.format("UPDATE Users SET phoneNum = '%s', password = '%s', favItems = '%s', type = '%s' WHERE login = '%s'", newPhoneNumber, newPassword, newFavItems, type, userName);
+         esql.useShardForLogin(userName);
          esql.executeUpdate(query);
+         // the remembered password is stale now, keep it only for the user's own new one
+         if (userName.strip().equals(esql.CurrentlyloggedInUser)) {
+            CacheLogin(userName, newPassword);
+         } else {
+            ForgetLogin(userName);
+         }
          System.out.println("User with name " + userName + " updated");
       } catch (Exception e) {
          System.err.println(e.getMessage());
@@ -698,32 +1744,67 @@ public class Cafe {
 
    public static void PlaceOrder(Cafe esql) {
       try {
-         boolean isManager = IsManager(esql);
-         
-         // Insert an order
          System.out.println("Placing an order");
+         // The items are collected before anything is written, so the order is
+         // either written as a whole or, when the database is unavailable,
+         // journaled as a whole
+         List<String[]> items = ReadItems();
+         if (items.isEmpty()) {
+            System.out.println("Order not placed, it has no items");
+            return;
+         }
          var currentTimeStamp = new Timestamp(System.currentTimeMillis());
-         String query = String.format("INSERT INTO Orders (login, paid, timeStampRecieved, total) VALUES ('%s', '%s', '%s', '%s') RETURNING orderid", esql.CurrentlyloggedInUser, false, currentTimeStamp, 0);
-         int orderId = Integer.parseInt(esql.executeQueryAndReturnResult(query).get(0).get(0));
-         System.out.println("Creating new order with orderid:  " + orderId);
-
-         InputItemsIntoOrder(esql, currentTimeStamp, orderId);
-
-         System.out.println("Order placed");
-         
-
+         int orderId;
+         try (Admission admission = esql.admit("PlaceOrder", Priority.ORDER)) {
+            orderId = PlaceOrderFromItems(esql, ItemsSource(items), currentTimeStamp);
+            admission.succeeded();
+         } catch (SQLException e) {
+            // The database is unreachable or overloaded, keep the order locally
+            System.err.println(e.getMessage());
+            PlaceOrderOffline(esql, currentTimeStamp, items);
+            if (!(e instanceof BusyException)) {
+               esql.reconnect();
+            }
+            return;
+         }
+         if (orderId < 0) {
+            System.out.println("Order not placed, none of its items are on the menu");
+            return;
+         }
+         System.out.println("Order placed with orderid: " + orderId + " (items that are not on the menu are left out)");
+         PrintOrderItems(esql, orderId);
       } catch (Exception e) {
          System.err.println(e.getMessage());
       }
    }
 
-   private static void InputItemsIntoOrder(Cafe esql, Timestamp currentTimeStamp, int orderId) throws IOException, SQLException {
+   /*
+    * Saves an order to the local order journal while the database is
+    * unavailable. The order is confirmed once it is on disk; the journal
+    * forwarder writes it to the database later.
+    **/
+   private static void PlaceOrderOffline(Cafe esql, Timestamp currentTimeStamp, List<String[]> items) throws IOException {
+      if (esql._journal == null) {
+         System.out.println("Order not placed, the database and the offline order journal are both unavailable");
+         return;
+      }
+      String key = esql._journal.append(esql.CurrentlyloggedInUser, currentTimeStamp, items);
+      System.out.println("The database is unavailable, order saved offline with key " + key + ", it will be sent to the database once it is back");
+   }
+
+   /*
+    * Reads the items of an order from the keyboard.
+    *
+    * @return the (itemName, comments) pairs entered
+    **/
+   private static List<String[]> ReadItems() throws IOException {
+      List<String[]> items = new ArrayList<String[]>();
       while (true) {
          // Get the item name:
          System.out.print("\tEnter item name (or just press enter to stop adding items): ");
          String itemName = in.readLine();
 
-         if (itemName.isBlank()) {
+         if (itemName == null || itemName.isBlank()) {
             break;
          }
 
@@ -731,13 +1812,105 @@ public class Cafe {
          System.out.print("\tEnter comments: ");
          String comments = in.readLine();
 
-         String itemStatusQuery = String.format("INSERT INTO ItemStatus (orderid, itemName, lastUpdated, comments) VALUES ('%s', '%s', '%s', '%s')", orderId, itemName, currentTimeStamp, comments);
-         esql.executeUpdate(itemStatusQuery);
+         items.add(new String[] { itemName.strip(), comments == null ? "" : comments });
+      }
+      return items;
+   }
+
+   /*
+    * Turns the items read by ReadItems into a query returning (itemName,
+    * comments) rows, for PlaceOrderFromItems. An item entered twice is
+    * ordered once.
+    **/
+   private static String ItemsSource(List<String[]> items) {
+      StringBuilder values = new StringBuilder();
+      for (String[] item : items) {
+         if (values.length() > 0) {
+            values.append(", ");
+         }
+         values.append(String.format("('%s', '%s')", OrderJournal.Quote(item[0]), OrderJournal.Quote(item[1])));
+      }
+      return "SELECT DISTINCT ON (itemName) itemName, comments FROM (VALUES " + values + ") AS v(itemName, comments)";
+   }
+
+   public static void Reorder(Cafe esql) {
+      try {
+         System.out.println("Reordering a previous order");
+         System.out.print("\tEnter the orderid of the order you want to repeat: ");
+         int previousOrderId = Integer.parseInt(in.readLine());
+
+         // Only the user's own orders can be repeated
+         String source = String.format("SELECT i.itemName, i.comments FROM ItemStatus i JOIN Orders o ON o.orderid = i.orderid WHERE i.orderid = '%s' AND o.login = '%s'", previousOrderId, esql.CurrentlyloggedInUser);
+         try (Admission admission = esql.admit("Reorder", Priority.ORDER)) {
+            int orderId = PlaceOrderFromItems(esql, source, new Timestamp(System.currentTimeMillis()));
+            if (orderId < 0) {
+               System.out.println("Order with orderid " + previousOrderId + " does not exist or has no items");
+               return;
+            }
+            System.out.println("Order placed with orderid: " + orderId);
+            PrintOrderItems(esql, orderId);
+            admission.succeeded();
+         }
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }
+
+   public static void OrderFavoriteItems(Cafe esql) {
+      try {
+         System.out.println("Ordering your favorite items");
+
+         // favItems is a comma separated list of item names, matched case insensitively
+         String source = String.format("SELECT m.itemName, '' AS comments FROM Menu m WHERE lower(trim(m.itemName)) IN (SELECT lower(trim(fav)) FROM Users u, unnest(string_to_array(u.favItems, ',')) AS fav WHERE u.login = '%s')", esql.CurrentlyloggedInUser);
+         try (Admission admission = esql.admit("OrderFavoriteItems", Priority.ORDER)) {
+            int orderId = PlaceOrderFromItems(esql, source, new Timestamp(System.currentTimeMillis()));
+            if (orderId < 0) {
+               System.out.println("None of your favorite items are on the menu, set them with Update Profile");
+               return;
+            }
+            System.out.println("Order placed with orderid: " + orderId);
+            PrintOrderItems(esql, orderId);
+            admission.succeeded();
+         }
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
       }
+   }
 
-      // Get the total price of all elements with the orderid
-      String updateTotalQuery = String.format("UPDATE Orders SET total = (SELECT SUM(price) FROM MENU WHERE itemName IN (SELECT itemName FROM ItemStatus WHERE orderid = '%s')) WHERE orderId = '%s'", orderId, orderId);
-      esql.executeUpdate(updateTotalQuery);;
+   /*
+    * Places a new order for the current user from a query returning
+    * (itemName, comments) rows. The order, its items and its total are all
+    * written by a single statement, so it takes one round trip and either
+    * everything is inserted or nothing is. Items that are not on the menu
+    * are left out.
+    *
+    * @return the new orderid or -1 if none of the items are on the menu
+    **/
+   private static int PlaceOrderFromItems(Cafe esql, String itemsQuery, Timestamp currentTimeStamp) throws SQLException {
+      String query = String.format(
+            "WITH source AS (%s), " +
+            "new_order AS (INSERT INTO Orders (login, paid, timeStampRecieved, total) " +
+                  "SELECT '%s', false, '%s', SUM(m.price) FROM source s JOIN Menu m ON m.itemName = s.itemName HAVING COUNT(*) > 0 " +
+                  "RETURNING orderid, total), " +
+            "items AS (INSERT INTO ItemStatus (orderid, itemName, lastUpdated, comments) " +
+                  "SELECT n.orderid, m.itemName, '%s', s.comments FROM new_order n CROSS JOIN source s JOIN Menu m ON m.itemName = s.itemName " +
+                  "RETURNING orderid, itemName) " +
+            "SELECT i.orderid, n.total, i.itemName FROM items i JOIN new_order n ON n.orderid = i.orderid",
+            itemsQuery, esql.CurrentlyloggedInUser, currentTimeStamp, currentTimeStamp);
+      List<List<String>> data = esql.executeQueryAndReturnResult(query);
+      if (data.size() == 0) {
+         return -1;
+      }
+      int orderId = Integer.parseInt(data.get(0).get(0));
+      if (esql._snapshot != null) {
+         List<String> itemNames = new ArrayList<String>();
+         for (List<String> record : data) {
+            itemNames.add(record.get(2));
+         }
+         esql._snapshot.recordOrder(orderId, esql.CurrentlyloggedInUser, currentTimeStamp);
+         esql._snapshot.recordItems(orderId, data.get(0).get(1), itemNames);
+      }
+      return orderId;
    }
 
    public static void PrintOrderItems(Cafe esql, int orderid){
@@ -764,19 +1937,24 @@ public class Cafe {
 
    public static void GetUnpaidOrdersInTheLast24Hours(Cafe esql)
    {
-      try {
+      try (Admission admission = esql.admitOnAllShards("GetUnpaidOrdersInTheLast24Hours", Priority.REPORT)) {
          System.out.println("Getting orders in the last 24 hours");
          var currentTimeStamp = new Timestamp(System.currentTimeMillis() - 86400000);
          String query = String.format("SELECT * FROM Orders WHERE timeStampRecieved > '%s' AND paid = false ORDER BY timeStampRecieved DESC", currentTimeStamp);
-         List<List<String>> data = esql.executeQueryAndReturnResult(query);
+         // every store's unpaid orders, newest first
+         List<List<String>> data = esql.executeQueryOnAllShardsAndReturnResult(query,
+               Comparator.comparing((List<String> record) -> Timestamp.valueOf(record.get(3))).reversed());
          for (List<String> record : data) {
             System.out.println("Orderid: " + record.get(0));
             System.out.println("Login: " + record.get(1));
             System.out.println("Paid: " + record.get(2));
             System.out.println("TimeStampRecieved: " + record.get(3));
             System.out.println("Total: " + record.get(4));
+            // the items are on the same shard as the order
+            esql.useShard(Integer.parseInt(record.get(record.size() - 1)));
             PrintOrderItems(esql, Integer.parseInt(record.get(0)));
          }
+         admission.succeeded();
       } catch (Exception e) {
          System.err.println(e.getMessage());
          return;
@@ -784,11 +1962,87 @@ public class Cafe {
    }
 
    public static void ListLastFiveOrders(Cafe esql) {
-      try {
+      try (Admission admission = esql.admit("ListLastFiveOrders", Priority.BROWSE)) {
          System.out.println("Getting the current user's (" + esql.CurrentlyloggedInUser +") last five orders");
-         String query = String.format("SELECT * FROM Orders WHERE Orders.login = '"+ esql.CurrentlyloggedInUser +"' ORDER BY timeStampRecieved DESC LIMIT 5");
-         List<List<String>> data = esql.executeQueryAndReturnResult(query);
-         for (List<String> record : data) {
+         PrintOrderHistoryPage(esql, esql.CurrentlyloggedInUser, null, 5);
+         admission.succeeded();
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+         return;
+      }
+   }
+
+   public static void BrowseOrderHistory(Cafe esql) {
+      try {
+         String login = esql.CurrentlyloggedInUser;
+         if (IsManager(esql)) {
+            System.out.print("\tEnter the login whose orders to browse (or just press enter for your own): ");
+            String otherLogin = in.readLine().strip();
+            if (!otherLogin.isEmpty()) {
+               login = otherLogin;
+            }
+         }
+         System.out.print("\tEnter the number of orders per page: ");
+         int pageSize = Integer.parseInt(in.readLine().strip());
+         if (pageSize <= 0) {
+            System.out.println("The page size must be positive");
+            return;
+         }
+
+         esql.useShardForLogin(login);
+         String[] after = null;
+         int page = 1;
+         while (true) {
+            System.out.println("-----PAGE " + page + "-----");
+            // each page is its own operation, nothing is held while the user reads it
+            try (Admission admission = esql.admit("BrowseOrderHistory", Priority.BROWSE)) {
+               after = PrintOrderHistoryPage(esql, login, after, pageSize);
+               admission.succeeded();
+            }
+            if (after == null) {
+               System.out.println("-----NO MORE ORDERS-----");
+               return;
+            }
+            System.out.print("\tPress enter for the next page (or q to stop): ");
+            if (in.readLine().strip().equalsIgnoreCase("q")) {
+               return;
+            }
+            page++;
+         }
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }
+
+   /*
+    * Prints one page of a user's orders with their items, newest first. The
+    * page is found by seeking to the orders before the last one printed
+    * (keyset pagination on the index over (login, timeStampRecieved, orderid)),
+    * so any page costs the same as the first one. The orders and their items
+    * are fetched in one query.
+    *
+    * @param after the (timeStampRecieved, orderid) of the last order of the
+    *              previous page, or null for the first page
+    * @return the key of the last order printed, or null if there are no more
+    **/
+   private static String[] PrintOrderHistoryPage(Cafe esql, String login, String[] after, int pageSize) throws SQLException {
+      String seek = after == null ? "" : String.format(" AND (timeStampRecieved, orderid) < ('%s', %s)", after[0], after[1]);
+      String query = String.format(
+            "SELECT o.orderid, o.login, o.paid, o.timeStampRecieved, o.total, i.orderid, i.itemName, i.lastUpdated, i.status, i.comments " +
+            "FROM (SELECT orderid, login, paid, timeStampRecieved, total FROM Orders WHERE login = '%s'%s " +
+                  "ORDER BY timeStampRecieved DESC, orderid DESC LIMIT %d) o " +
+            "LEFT JOIN ItemStatus i ON i.orderid = o.orderid " +
+            "ORDER BY o.timeStampRecieved DESC, o.orderid DESC, i.itemName",
+            login, seek, pageSize);
+      List<List<String>> data = esql.executeQueryAndReturnResult(query);
+
+      String[] last = null;
+      int orders = 0;
+      for (List<String> record : data) {
+         if (last == null || !last[1].equals(record.get(0))) {
+            // first row of the next order
+            last = new String[] { record.get(3), record.get(0) };
+            orders++;
             System.out.println("-----RECORD FOUND-----");
             System.out.println("Orderid: " + record.get(0));
             System.out.println("Login: " + record.get(1));
@@ -796,12 +2050,20 @@ public class Cafe {
             System.out.println("TimeStampRecieved: " + record.get(3));
             System.out.println("Total: " + record.get(4));
             System.out.println("-----END OF RECORD-----");
-            PrintOrderItems(esql, Integer.parseInt(record.get(0)));
+            System.out.println("-----ITEMS IN THIS ORDER-----");
+         }
+         if (record.get(5) != null) {
+            System.out.println("\t-----ITEM-----");
+            System.out.println("\tOrderid: " + record.get(5));
+            System.out.println("\tItemName: " + record.get(6));
+            System.out.println("\tLastUpdated: " + record.get(7));
+            System.out.println("\tStatus: " + record.get(8));
+            System.out.println("\tComments: " + record.get(9));
+            System.out.println("\t-----END OF ITEM-----");
+            System.out.println();
          }
-      } catch (Exception e) {
-         System.err.println(e.getMessage());
-         return;
       }
+      return orders < pageSize ? null : last;
    }
 
    public static void ChangeUnpaidOrderToPaid(Cafe esql) {
@@ -810,8 +2072,15 @@ public class Cafe {
          System.out.print("\tEnter the orderid of the order you want to change: ");
          int orderId = Integer.parseInt(in.readLine());
 
+         // orderids are unique across the shards, only the one holding the order updates it
          String query = String.format("UPDATE Orders SET paid = true WHERE orderid = '%s'", orderId);
-         esql.executeUpdate(query);
+         try (Admission admission = esql.admitOnAllShards("ChangeUnpaidOrderToPaid", Priority.PAYMENT)) {
+            esql.executeUpdateOnAllShards(query);
+            admission.succeeded();
+         }
+         if (esql._snapshot != null) {
+            esql._snapshot.markPaid(orderId);
+         }
          System.out.println("Order with orderid " + orderId + " changed to paid");
       } catch (Exception e) {
          System.err.println(e.getMessage());
@@ -819,73 +2088,1356 @@ public class Cafe {
       }
    }
 
-   public static void UpdateOrder(Cafe esql) {
+   public static void SettleUnpaidOrders(Cafe esql) {
       try {
-         boolean isManager = IsManager(esql);
+         System.out.println("Settling unpaid orders");
+         System.out.println("\t1. By a list of orderids");
+         System.out.println("\t2. All unpaid orders of a user");
+         System.out.println("\t3. All unpaid orders in the last 24 hours");
+         System.out.print("\tEnter your choice: ");
+         int choice = Integer.parseInt(in.readLine());
+
+         String condition;
+         // orders live on the shard of their user, other settlements go to every shard
+         List<Integer> shards = new ArrayList<Integer>();
+         for (int shard = 0; shard < esql.getShardCount(); shard++) {
+            shards.add(shard);
+         }
+         switch (choice) {
+            case 1:
+               System.out.print("\tEnter the orderids, separated by commas: ");
+               List<String> orderIds = new ArrayList<String>();
+               for (String orderId : in.readLine().split(",")) {
+                  if (!orderId.isBlank()) {
+                     orderIds.add(String.valueOf(Integer.parseInt(orderId.strip())));
+                  }
+               }
+               if (orderIds.isEmpty()) {
+                  System.out.println("No orderids given");
+                  return;
+               }
+               condition = "orderid IN (" + String.join(",", orderIds) + ")";
+               break;
+            case 2:
+               System.out.print("\tEnter the login of the user: ");
+               String login = in.readLine().strip();
+               condition = String.format("login = '%s'", login);
+               shards = List.of(ShardForLogin(login, esql.getShardCount()));
+               break;
+            case 3:
+               condition = String.format("timeStampRecieved > '%s'", new Timestamp(System.currentTimeMillis() - 86400000));
+               break;
+            default:
+               System.out.println("Invalid choice");
+               return;
+         }
 
-         System.out.println("Updating order");
-         System.out.print("\tEnter order id: ");
-         int orderId = Integer.parseInt(in.readLine());
+         // Settles at most SETTLE_CHUNK orders per statement (and transaction) so row
+         // locks are held briefly; orders locked by another terminal are skipped.
+         String query = String.format("UPDATE Orders SET paid = true WHERE orderid IN (SELECT orderid FROM Orders WHERE paid = false AND %s ORDER BY orderid LIMIT %d FOR UPDATE SKIP LOCKED) RETURNING orderid, total", condition, SETTLE_CHUNK);
+         int settled = 0;
+         double settledTotal = 0;
+         long start = System.nanoTime();
+         try (Admission admission = esql.admitOnAllShards("SettleUnpaidOrders", Priority.PAYMENT)) {
+            for (int shard : shards) {
+               esql.useShard(shard);
+               List<List<String>> chunk;
+               do {
+                  chunk = esql.executeQueryAndReturnResult(query);
+                  for (List<String> record : chunk) {
+                     settledTotal += Double.parseDouble(record.get(1));
+                     if (esql._snapshot != null) {
+                        esql._snapshot.markPaid(Integer.parseInt(record.get(0)));
+                     }
+                  }
+                  settled += chunk.size();
+               } while (chunk.size() == SETTLE_CHUNK);
+            }
+            admission.succeeded();
+         }
+         double seconds = (System.nanoTime() - start) / 1e9;
 
-         // Check if the order has been paid yet
-         String query = String.format("SELECT paid FROM Orders WHERE orderid = '%s' AND paid = false AND login = '%s'", orderId, esql.CurrentlyloggedInUser);
-         int numResults = esql.executeQuery(query);
-         if (numResults == 0) {
-            System.out.println("Order with orderid " + orderId + " does not exist or has already been paid");
-            return;
-         } else {
-            
-            // Get all item status records for the current orderID
-            query = String.format("SELECT * FROM ItemStatus WHERE orderid = '%s'", orderId);
-            List<List<String>> itemStatusRecords = esql.executeQueryAndReturnResult(query);
-         
-            // Get all item names in the current order
-            List<String> itemNames = new ArrayList<>();
-            for (List<String> record : itemStatusRecords) {
-               itemNames.add(record.get(1));
-            }
-
-            // Give an option to delete each item or change it's comment field:
-            for (String itemName : itemNames) {
-               System.out.println("\tItem: " + itemName);
-               System.out.println("\t\t1. Delete item");
-               System.out.println("\t\t2. Change comments");
-               System.out.println("\t\t3. Continue without changing the item");
-               System.out.print("\t\tEnter your choice: ");
-               int choice = Integer.parseInt(in.readLine());
-               switch (choice) {
-                  case 1:
-                     // Delete the item
-                     query = String.format("DELETE FROM ItemStatus WHERE orderid = '%s' AND itemName = '%s'", orderId, itemName);
-                     esql.executeUpdate(query);
-                     break;
-                  case 2:
-                     // Change the comments
-                     System.out.print("\t\tEnter new comments: ");
-                     String comments = in.readLine();
-                     query = String.format("UPDATE ItemStatus SET comments = '%s' WHERE orderid = '%s' AND itemName = '%s'", comments, orderId, itemName);
-                     esql.executeUpdate(query);
-                     break;
-                  case 3:
-                     // Continue without changing the item
-                     break;
-                  default:
-                     System.out.println("\t\tInvalid choice");
-                     break;
+         System.out.println(settled + " orders changed to paid, " + currencyFormatter.format(settledTotal) + " in total");
+         System.out.println(String.format("Took %.3f s (%.0f orders/s)", seconds, seconds > 0 ? settled / seconds : 0));
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }
+
+   public static void Dashboard(Cafe esql) {
+      try {
+         if (esql._snapshot == null) {
+            esql._snapshot = new OrderSnapshot();
+         }
+         System.out.println("Live dashboard, refreshed every " + DASHBOARD_REFRESH_SECONDS + " seconds. Press enter to leave.");
+         do {
+            // each refresh is its own operation, nothing is held between refreshes
+            try (Admission admission = esql.admitOnAllShards("Dashboard", Priority.REPORT)) {
+               esql._snapshot.refresh(esql);
+               admission.succeeded();
+            }
+            esql._snapshot.print();
+            // wait for the next refresh, unless enter is pressed
+            for (int i = 0; i < DASHBOARD_REFRESH_SECONDS * 10 && !in.ready(); i++) {
+               Thread.sleep(100);
+            }
+         } while (!in.ready());
+         in.readLine();
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }
+
+   public static void UpdateOrder(Cafe esql) {
+      try {
+         System.out.println("Updating order");
+         System.out.print("\tEnter order id: ");
+         int orderId = Integer.parseInt(in.readLine());
+
+         // Get all item names in the order, if it has not been paid yet
+         String query = String.format("SELECT i.itemName FROM Orders o LEFT JOIN ItemStatus i ON i.orderid = o.orderid WHERE o.orderid = '%s' AND o.paid = false AND o.login = '%s'", orderId, esql.CurrentlyloggedInUser);
+         List<List<String>> itemStatusRecords;
+         try (Admission admission = esql.admit("UpdateOrder", Priority.ORDER)) {
+            itemStatusRecords = esql.executeQueryAndReturnResult(query);
+            admission.succeeded();
+         }
+         if (itemStatusRecords.size() == 0) {
+            System.out.println("Order with orderid " + orderId + " does not exist or has already been paid");
+            return;
+         }
+
+         // Give an option to delete each item or change it's comment field.
+         // The changes are collected first and written together below, so
+         // nothing is held while the user is typing.
+         List<String> deleted = new ArrayList<String>();
+         List<String[]> changed = new ArrayList<String[]>();
+         for (List<String> record : itemStatusRecords) {
+            if (record.get(0) == null) {
+               // the order has no items
+               break;
+            }
+            String itemName = record.get(0).strip();
+            System.out.println("\tItem: " + itemName);
+            System.out.println("\t\t1. Delete item");
+            System.out.println("\t\t2. Change comments");
+            System.out.println("\t\t3. Continue without changing the item");
+            System.out.print("\t\tEnter your choice: ");
+            int choice = Integer.parseInt(in.readLine());
+            switch (choice) {
+               case 1:
+                  // Delete the item
+                  deleted.add(itemName);
+                  break;
+               case 2:
+                  // Change the comments
+                  System.out.print("\t\tEnter new comments: ");
+                  changed.add(new String[] { itemName, in.readLine() });
+                  break;
+               case 3:
+                  // Continue without changing the item
+                  break;
+               default:
+                  System.out.println("\t\tInvalid choice");
+                  break;
+            }
+         }
+
+         System.out.println("You can now enter any new items to your order:");
+         List<String[]> added = ReadItems();
+
+         List<List<String>> data;
+         try (Admission admission = esql.admit("UpdateOrder", Priority.ORDER)) {
+            data = esql.executeQueryAndReturnResult(UpdateOrderQuery(esql, orderId, deleted, changed, added));
+            admission.succeeded();
+         }
+         if (data.size() == 0) {
+            System.out.println("Order with orderid " + orderId + " does not exist or has already been paid");
+            return;
+         }
+         if (esql._snapshot != null) {
+            List<String> itemNames = new ArrayList<String>();
+            for (List<String> record : data) {
+               if (record.get(1) != null) {
+                  itemNames.add(record.get(1));
                }
             }
+            esql._snapshot.recordItems(orderId, data.get(0).get(0), itemNames);
+         }
+         System.out.println("Order updated");
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }
 
-            System.out.println("Updating complete, you can now enter any new items to your order:");
+   /*
+    * Builds the statement writing all the changes of UpdateOrder at once:
+    * the deleted items, the changed comments, the new items (those on the
+    * menu and not in the order yet) and the new total. Nothing is written
+    * if the order has been paid in the meantime.
+    *
+    * @return a query returning (total, added itemName) rows, one per added
+    *         item or a single row with a null itemName, or no rows when the
+    *         order can not be updated
+    **/
+   private static String UpdateOrderQuery(Cafe esql, int orderId, List<String> deleted, List<String[]> changed, List<String[]> added) {
+      StringBuilder deletedValues = new StringBuilder();
+      for (String itemName : deleted) {
+         deletedValues.append(deletedValues.length() > 0 ? ", " : "").append(String.format("('%s')", OrderJournal.Quote(itemName)));
+      }
+      StringBuilder changedValues = new StringBuilder();
+      for (String[] item : changed) {
+         changedValues.append(changedValues.length() > 0 ? ", " : "").append(String.format("('%s', '%s')", OrderJournal.Quote(item[0]), OrderJournal.Quote(item[1])));
+      }
+      return String.format(
+            "WITH target AS (SELECT orderid FROM Orders WHERE orderid = '%s' AND paid = false AND login = '%s' FOR UPDATE), " +
+            "deleted AS (DELETE FROM ItemStatus i USING target t WHERE i.orderid = t.orderid " +
+                  "AND i.itemName IN (SELECT itemName FROM (VALUES %s) AS d(itemName)) RETURNING i.itemName), " +
+            "changed AS (UPDATE ItemStatus i SET comments = c.comments FROM target t, (VALUES %s) AS c(itemName, comments) " +
+                  "WHERE i.orderid = t.orderid AND i.itemName = c.itemName RETURNING i.itemName), " +
+            "added AS (INSERT INTO ItemStatus (orderid, itemName, lastUpdated, comments) " +
+                  "SELECT t.orderid, m.itemName, '%s'::timestamp, s.comments FROM target t CROSS JOIN (%s) s JOIN Menu m ON m.itemName = s.itemName " +
+                  "WHERE NOT EXISTS (SELECT 1 FROM ItemStatus i WHERE i.orderid = t.orderid AND i.itemName = m.itemName) RETURNING itemName), " +
+            "updated AS (UPDATE Orders o SET total = COALESCE((SELECT SUM(m.price) FROM Menu m WHERE m.itemName IN (" +
+                  "SELECT itemName FROM ItemStatus WHERE orderid = o.orderid AND itemName NOT IN (SELECT itemName FROM deleted) " +
+                  "UNION SELECT itemName FROM added)), 0) " +
+                  "FROM target t WHERE o.orderid = t.orderid RETURNING o.total) " +
+            "SELECT u.total, a.itemName FROM updated u LEFT JOIN added a ON true",
+            orderId, esql.CurrentlyloggedInUser,
+            deleted.isEmpty() ? "(NULL::text)" : deletedValues,
+            changed.isEmpty() ? "(NULL::text, NULL::text)" : changedValues,
+            new Timestamp(System.currentTimeMillis()),
+            added.isEmpty() ? "SELECT NULL::text AS itemName, NULL::text AS comments WHERE false" : ItemsSource(added));
+   }
 
-            // Add new items to the order
-            InputItemsIntoOrder(esql, new Timestamp(System.currentTimeMillis()), orderId);
+   public static void ExportOrders(Cafe esql) {
+      try {
+         System.out.println("Exporting orders and their items to CSV");
+         System.out.print("\tEnter the first day to export (yyyy-mm-dd): ");
+         Timestamp from = Timestamp.valueOf(in.readLine().strip() + " 00:00:00");
+         System.out.print("\tEnter the day to stop at, not included (yyyy-mm-dd): ");
+         Timestamp to = Timestamp.valueOf(in.readLine().strip() + " 00:00:00");
+         System.out.print("\tEnter the output file (ending in .gz to compress it): ");
+         String fileName = in.readLine().strip();
+
+         // The range is half open so it splits into adjacent parts, exported
+         // side by side on their own connections.
+         int parts = Math.max(1, Integer.getInteger("cafe.export.parallelism", 4));
+         long partMillis = Math.max(1, (to.getTime() - from.getTime() + parts - 1) / parts);
+         List<String> queries = new ArrayList<String>();
+         for (long partFrom = from.getTime(); partFrom < to.getTime(); partFrom += partMillis) {
+            Timestamp partTo = new Timestamp(Math.min(to.getTime(), partFrom + partMillis));
+            queries.add(String.format("SELECT o.orderid, o.login, o.paid, o.timeStampRecieved, o.total, i.itemName, i.lastUpdated, i.status, i.comments FROM Orders o JOIN ItemStatus i ON i.orderid = o.orderid WHERE o.timeStampRecieved >= '%s' AND o.timeStampRecieved < '%s' ORDER BY o.timeStampRecieved, o.orderid", new Timestamp(partFrom), partTo));
+         }
 
-            System.out.println("Order updated");
+         long start = System.currentTimeMillis();
+         int rowCount = 0;
+         File directory = Files.createTempDirectory("cafe-export").toFile();
+         ExecutorService exporters = Executors.newFixedThreadPool(parts, task -> {
+            Thread thread = new Thread(task, "order-exporter");
+            thread.setDaemon(true);
+            return thread;
+         });
+         try (Admission admission = esql.admitOnAllShards("ExportOrders", Priority.REPORT)) {
+            // one store after the other, and within a store the parts in time order
+            List<File> files = new ArrayList<File>();
+            List<CompletableFuture<Integer>> exports = new ArrayList<CompletableFuture<Integer>>();
+            for (int shard = 0; shard < esql.getShardCount(); shard++) {
+               for (int part = 0; part < queries.size(); part++) {
+                  File file = new File(directory, shard + "-" + part + ".csv");
+                  files.add(file);
+                  final int target = shard;
+                  final String query = queries.get(part);
+                  final boolean header = files.size() == 1;
+                  exports.add(CompletableFuture.supplyAsync(() -> {
+                     try (Connection connection = esql.openConnection(target);
+                           Writer out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+                        return esql.executeQueryAndStreamCsv(connection, query, 1000, out, header);
+                     } catch (SQLException | IOException e) {
+                        throw new CompletionException(e);
+                     }
+                  }, exporters));
+               }
+            }
+            for (CompletableFuture<Integer> export : exports) {
+               try {
+                  rowCount += export.join();
+               } catch (CompletionException e) {
+                  throw new SQLException("Export failed, nothing written: " + e.getCause().getMessage());
+               }
+            }
 
+            // write the parts out in order, compressed if asked for
+            try (OutputStream out = fileName.endsWith(".gz")
+                  ? new GZIPOutputStream(new FileOutputStream(fileName), 65536)
+                  : new BufferedOutputStream(new FileOutputStream(fileName))) {
+               for (File file : files) {
+                  Files.copy(file.toPath(), out);
+               }
+            }
+            admission.succeeded();
+         } finally {
+            exporters.shutdownNow();
+            for (File file : directory.listFiles()) {
+               file.delete();
+            }
+            directory.delete();
          }
+         long elapsed = System.currentTimeMillis() - start;
+         System.out.println("Exported " + rowCount + " rows to " + fileName + " in " + elapsed + " ms");
+      } catch (IllegalArgumentException e) {
+         System.out.println("Dates must be in the format yyyy-mm-dd");
       } catch (Exception e) {
          System.err.println(e.getMessage());
       }
    }
 
+   /**
+    * Priorities of the operations, most important first. When the database is
+    * saturated, statements of a higher priority are admitted before the ones
+    * below it, and reports are the first to be shed.
+    */
+   public enum Priority {
+      PAYMENT, ORDER, BROWSE, REPORT
+   }
+
+   /**
+    * Thrown when a statement is shed by the admission control because the
+    * database is too busy.
+    */
+   public static class BusyException extends SQLException {
+      private static final long serialVersionUID = 1L;
+
+      public BusyException(String reason) {
+         super(reason);
+      }
+   }
+
+   /**
+    * Admission control for the operations run against the database, e.g.
+    * placing an order or a report, shared by every terminal using the same
+    * database.
+    *
+    * An operation runs only while its connection holds one of the database's
+    * admission slots, which are Postgres advisory locks, so the limit holds
+    * across all client processes. A slot is only taken while fewer slots
+    * than the terminal's limit are held by all terminals together; lower
+    * priorities only get in below a share of that limit, so under load
+    * payments and orders get in before reports. Each terminal adapts its
+    * limit to the latency of its operations, tracked per operation so a
+    * report is only compared with earlier runs of the same report: the limit
+    * grows additively while each operation's recent p90 latency stays within
+    * twice its baseline, and shrinks multiplicatively when it does not.
+    * Operations that find no free slot wait, polling, if they get one of the
+    * bounded queue tickets (advisory locks as well), and are rejected with a
+    * BusyException when there is no ticket left or the wait times out.
+    *
+    * Admission costs a round trip before and after each operation; run with
+    * -Dcafe.admission.slots=0 to turn it off.
+    */
+   static class AdmissionController {
+      // first key of the two key advisory locks: "CAFE" for slots, "CAFQ" for queue tickets
+      private static final int SLOT_SPACE = 0x43414645;
+      private static final int QUEUE_SPACE = 0x43414651;
+      private static final int MAX_SLOTS = Integer.getInteger("cafe.admission.slots", 16);
+      private static final int MAX_QUEUED = Integer.getInteger("cafe.admission.queue", 64);
+      // how long each priority may wait for a slot before giving up
+      private static final long[] MAX_WAIT_MILLIS = { 5000, 3000, 1000, 500 };
+      // the share of the slots and queue tickets each priority may use
+      private static final double[] SHARE = { 1.0, 0.9, 0.7, 0.5 };
+      private static final long MAX_POLL_MILLIS = 50;
+      // latencies kept per operation, and how many are needed before they count
+      private static final int WINDOW = 20;
+      private static final int MIN_SAMPLES = 5;
+
+      private final AtomicLong roundTrips;
+      private final AtomicLong failures;
+      private double limit = MAX_SLOTS;
+      private final Map<String, LatencyWindow> latencies = new HashMap<String, LatencyWindow>();
+      // locks whose unlock failed, retried before the connection's next acquire
+      private final Map<Connection, List<int[]>> unreleased = new ConcurrentHashMap<Connection, List<int[]>>();
+      private final long[] admitted = new long[Priority.values().length];
+      private final long[] waited = new long[Priority.values().length];
+      private final long[] shed = new long[Priority.values().length];
+
+      AdmissionController(AtomicLong roundTrips, AtomicLong failures) {
+         this.roundTrips = roundTrips;
+         this.failures = failures;
+      }
+
+      /*
+       * Waits for a slot for an operation of the given priority on the given
+       * connection.
+       *
+       * @return the slot taken, to pass to release, or -1 when admission
+       *         control is turned off
+       * @throws java.sql.SQLException when the operation is shed or the
+       *         database can not be reached
+       **/
+      int acquire(Connection connection, Priority priority) throws SQLException {
+         if (MAX_SLOTS <= 0) {
+            return -1;
+         }
+         int p = priority.ordinal();
+         retryUnlocks(connection);
+         int slot;
+         try {
+            slot = tryLockSlot(connection, limitFor(p));
+         } catch (SQLException e) {
+            // e.g. the connection broke, the operation fails as well
+            failures.incrementAndGet();
+            throw e;
+         }
+         if (slot < 0) {
+            int ticket = tryLockTicket(connection, Math.max(1, (int) (MAX_QUEUED * SHARE[p])));
+            if (ticket < 0) {
+               count(shed, p);
+               failures.incrementAndGet();
+               throw new BusyException("Busy: too many requests waiting for the database, please try again");
+            }
+            count(waited, p);
+            try {
+               long deadline = System.currentTimeMillis() + MAX_WAIT_MILLIS[p];
+               long pause = 2;
+               while ((slot = tryLockSlot(connection, limitFor(p))) < 0) {
+                  if (System.currentTimeMillis() >= deadline) {
+                     count(shed, p);
+                     failures.incrementAndGet();
+                     throw new BusyException("Busy: the database is overloaded, please try again");
+                  }
+                  Thread.sleep(pause);
+                  pause = Math.min(pause * 2, MAX_POLL_MILLIS);
+               }
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               count(shed, p);
+               failures.incrementAndGet();
+               throw new BusyException("Busy: interrupted while waiting for the database");
+            } finally {
+               unlock(connection, QUEUE_SPACE, ticket);
+            }
+         }
+         count(admitted, p);
+         return slot;
+      }
+
+      /*
+       * Frees the slot of a finished operation.
+       **/
+      void release(Connection connection, int slot) {
+         if (slot >= 0) {
+            unlock(connection, SLOT_SPACE, slot);
+         }
+      }
+
+      /*
+       * Adjusts the limit with the latency of an operation that succeeded.
+       **/
+      synchronized void sample(String operation, long latencyNanos) {
+         if (MAX_SLOTS <= 0) {
+            return;
+         }
+         LatencyWindow window = latencies.computeIfAbsent(operation, name -> new LatencyWindow());
+         window.add(latencyNanos / 1e6);
+         if (window.count < MIN_SAMPLES) {
+            return;
+         }
+         double p90 = window.p90();
+         // the baseline slowly forgets, so a permanently slower database is not punished forever
+         window.baseline = Math.min(window.baseline * 1.01, p90);
+         if (p90 <= Math.max(2 * window.baseline, 1.0)) {
+            limit = Math.min(MAX_SLOTS, limit + 1 / limit);
+         } else if (window.sinceDecrease >= WINDOW) {
+            // at most once per window, the slow samples that caused it have to leave the window first
+            limit = Math.max(1, limit * 0.75);
+            window.sinceDecrease = 0;
+         }
+      }
+
+      /*
+       * The number of slots that may be held by all terminals together for
+       * an operation of the given priority to be admitted.
+       **/
+      private synchronized int limitFor(int p) {
+         return Math.max(1, (int) (limit * SHARE[p]));
+      }
+
+      private synchronized void count(long[] counter, int p) {
+         counter[p]++;
+      }
+
+      /*
+       * Takes a free slot if fewer than limit slots are held by all
+       * terminals. Every terminal tries all the keys, so the limit bounds how
+       * many operations run, not which keys they may use. Terminals checking
+       * at the same moment may overshoot the limit, never MAX_SLOTS.
+       *
+       * @return the slot taken, or -1 if none was
+       **/
+      private int tryLockSlot(Connection connection, int limit) throws SQLException {
+         // the count is an uncorrelated subquery, computed once before the
+         // scan; CASE makes sure no lock is taken when it is over the limit
+         return tryLock(connection, String.format(
+               "SELECT s FROM generate_series(0, %d) AS s WHERE CASE WHEN (%s) < %d THEN pg_try_advisory_lock(%d, s) ELSE false END LIMIT 1",
+               MAX_SLOTS - 1, HeldQuery(SLOT_SPACE), limit, SLOT_SPACE));
+      }
+
+      /*
+       * Takes the first free queue ticket of keys 0 to count - 1.
+       *
+       * @return the ticket taken, or -1 if all of them are held
+       **/
+      private int tryLockTicket(Connection connection, int count) throws SQLException {
+         return tryLock(connection, String.format(
+               "SELECT s FROM generate_series(0, %d) AS s WHERE pg_try_advisory_lock(%d, s) LIMIT 1", count - 1, QUEUE_SPACE));
+      }
+
+      private int tryLock(Connection connection, String query) throws SQLException {
+         Statement stmt = connection.createStatement();
+         try {
+            // the filter is evaluated row by row, so the scan stops at the first lock taken
+            ResultSet rs = stmt.executeQuery(query);
+            roundTrips.incrementAndGet();
+            return rs.next() ? rs.getInt(1) : -1;
+         } finally {
+            stmt.close();
+         }
+      }
+
+      /*
+       * A query counting the locks of the given space held by all sessions
+       * on the current database.
+       **/
+      private static String HeldQuery(int space) {
+         return String.format(
+               "SELECT count(*) FROM pg_locks WHERE locktype = 'advisory' AND granted AND classid = %d AND objsubid = 2 AND database = (SELECT oid FROM pg_database WHERE datname = current_database())",
+               space);
+      }
+
+      /*
+       * Releases a lock. When the unlock fails, e.g. because a failed statement
+       * left the connection's transaction aborted, the transaction is rolled
+       * back and the unlock tried again. A lock that still can not be released
+       * is retried before the next acquire on the connection: advisory locks
+       * are re-entrant, so taking it again would only stack another hold on a
+       * slot every other terminal is locked out of.
+       **/
+      private void unlock(Connection connection, int space, int key) {
+         for (int attempt = 0; attempt < 2; attempt++) {
+            try {
+               Statement stmt = connection.createStatement();
+               stmt.executeQuery(String.format("SELECT pg_advisory_unlock(%d, %d)", space, key)).close();
+               roundTrips.incrementAndGet();
+               stmt.close();
+               return;
+            } catch (SQLException e) {
+               try {
+                  if (connection.isClosed()) {
+                     // its locks went with its session
+                     return;
+                  }
+                  if (!connection.getAutoCommit()) {
+                     connection.rollback();
+                  }
+               } catch (SQLException rollbackFailed) {
+                  break;
+               }
+            }
+         }
+         unreleased.computeIfAbsent(connection, c -> new ArrayList<int[]>()).add(new int[] { space, key });
+      }
+
+      private void retryUnlocks(Connection connection) {
+         List<int[]> locks = unreleased.remove(connection);
+         if (locks != null) {
+            for (int[] lock : locks) {
+               unlock(connection, lock[0], lock[1]);
+            }
+         }
+      }
+
+      void printMetrics(Connection connection) throws SQLException {
+         System.out.println("-----ADMISSION CONTROL-----");
+         if (MAX_SLOTS <= 0) {
+            System.out.println("Disabled (cafe.admission.slots=0)");
+         } else {
+            Statement stmt = connection.createStatement();
+            ResultSet rs = stmt.executeQuery("SELECT (" + HeldQuery(SLOT_SPACE) + "), (" + HeldQuery(QUEUE_SPACE) + ")");
+            rs.next();
+            System.out.println(String.format("All terminals: %d of %d slots in use, %d waiting", rs.getInt(1), MAX_SLOTS, rs.getInt(2)));
+            stmt.close();
+            synchronized (this) {
+               System.out.println(String.format("This terminal: limit %.1f slots", limit));
+               for (Priority priority : Priority.values()) {
+                  int p = priority.ordinal();
+                  System.out.println(String.format("%-8s admitted: %d  queued: %d  shed: %d", priority, admitted[p], waited[p], shed[p]));
+               }
+               for (Map.Entry<String, LatencyWindow> entry : latencies.entrySet()) {
+                  LatencyWindow window = entry.getValue();
+                  if (window.count >= MIN_SAMPLES) {
+                     System.out.println(String.format("%-32s p90: %.1f ms  baseline: %.1f ms", entry.getKey(), window.p90(), window.baseline));
+                  }
+               }
+            }
+         }
+         System.out.println("-----END OF ADMISSION CONTROL-----");
+      }
+
+      /*
+       * The latest WINDOW latencies of one operation.
+       **/
+      private static class LatencyWindow {
+         private final double[] samples = new double[WINDOW];
+         private int count;
+         private int sinceDecrease = WINDOW;
+         private double baseline = Double.MAX_VALUE;
+
+         void add(double latencyMillis) {
+            samples[count % WINDOW] = latencyMillis;
+            count++;
+            sinceDecrease++;
+         }
+
+         double p90() {
+            double[] sorted = Arrays.copyOf(samples, Math.min(count, WINDOW));
+            Arrays.sort(sorted);
+            return sorted[(int) Math.ceil(0.9 * sorted.length) - 1];
+         }
+      }
+   }// end AdmissionController
+
+   /**
+    * The admission of one operation, holding its slots (one per shard it
+    * uses) until it is closed. Mark it succeeded before closing it for its
+    * latency to count; failed operations are not sampled.
+    */
+   static class Admission implements AutoCloseable {
+      private final AdmissionController controller;
+      private final String operation;
+      private final List<Connection> connections = new ArrayList<Connection>();
+      private final List<Integer> slots = new ArrayList<Integer>();
+      private long admittedAt;
+      private boolean succeeded;
+
+      Admission(AdmissionController controller, String operation) {
+         this.controller = controller;
+         this.operation = operation;
+      }
+
+      void add(Connection connection, int slot) {
+         connections.add(connection);
+         slots.add(slot);
+      }
+
+      void start() {
+         admittedAt = System.nanoTime();
+      }
+
+      void succeeded() {
+         succeeded = true;
+      }
+
+      @Override
+      public void close() {
+         for (int i = 0; i < connections.size(); i++) {
+            controller.release(connections.get(i), slots.get(i));
+         }
+         connections.clear();
+         if (succeeded) {
+            controller.sample(operation, System.nanoTime() - admittedAt);
+            succeeded = false;
+         }
+      }
+   }// end Admission
+
+   /**
+    * Append only journal of the orders taken while the database is
+    * unavailable, kept in a memory mapped file next to the client.
+    *
+    * Each record is [length][state][payload]. The length is flushed last, so
+    * a record torn by a crash still has length 0 and is dropped on recovery.
+    * The state flips from PENDING to FORWARDED once the forwarder has written
+    * the order to the database. Every order carries a unique key, stored in
+    * Orders.journalKey, so replaying a record twice (e.g. after a crash
+    * between the commit and the state flip) does not duplicate the order.
+    */
+   static class OrderJournal {
+      private static final int CAPACITY = 4 * 1024 * 1024;
+      private static final int HEADER = 5;
+      private static final byte PENDING = 0;
+      private static final byte FORWARDED = 1;
+      private static final String FIELD = "\u001f";
+      private static final String ITEM = "\u001e";
+      private static final long FORWARD_INTERVAL_SECONDS = 5;
+
+      private final File file;
+      private FileChannel lockChannel;
+      private MappedByteBuffer buffer;
+      // offsets of the records not forwarded yet, in journal order
+      private final List<Integer> pending = new ArrayList<Integer>();
+      private int writePosition;
+      // bumped by every compaction, as it moves the records
+      private int generation = 0;
+      private ScheduledExecutorService forwarder;
+
+      private OrderJournal(File file) {
+         this.file = file;
+      }
+
+      /*
+       * Opens the journal, creating it if needed, and recovers the records
+       * still pending from the last run.
+       **/
+      static OrderJournal open(File file) throws IOException {
+         OrderJournal journal = new OrderJournal(file);
+         // only one terminal may use a journal file
+         journal.lockChannel = FileChannel.open(new File(file.getPath() + ".lock").toPath(),
+               StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+         if (journal.lockChannel.tryLock() == null) {
+            journal.lockChannel.close();
+            throw new IOException(file + " is used by another terminal");
+         }
+         journal.map();
+         if (journal.pendingCount() > 0) {
+            System.out.println(journal.pendingCount() + " offline order(s) waiting to be sent to the database");
+         }
+         return journal;
+      }
+
+      private void map() throws IOException {
+         try (FileChannel channel = FileChannel.open(file.toPath(),
+               StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, CAPACITY);
+         }
+         // scan the records written before the last shutdown or crash
+         pending.clear();
+         int position = 0;
+         while (position + HEADER <= CAPACITY) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + HEADER + length > CAPACITY) {
+               break;
+            }
+            if (buffer.get(position + 4) == PENDING) {
+               pending.add(position);
+            }
+            position += HEADER + length;
+         }
+         writePosition = position;
+      }
+
+      synchronized int pendingCount() {
+         return pending.size();
+      }
+
+      /*
+       * Appends an order and returns once it is flushed to disk.
+       *
+       * @return the key identifying the order
+       **/
+      synchronized String append(String login, Timestamp timeStamp, List<String[]> items) throws IOException {
+         String key = UUID.randomUUID().toString();
+         StringBuilder payload = new StringBuilder();
+         payload.append(key).append(FIELD).append(login).append(FIELD).append(timeStamp);
+         for (String[] item : items) {
+            payload.append(ITEM).append(item[0]).append(FIELD).append(item[1]);
+         }
+         byte[] bytes = payload.toString().getBytes(StandardCharsets.UTF_8);
+
+         if (writePosition + HEADER + bytes.length > CAPACITY) {
+            compact();
+            if (writePosition + HEADER + bytes.length > CAPACITY) {
+               throw new IOException("The offline order journal is full");
+            }
+         }
+         buffer.put(writePosition + 4, PENDING);
+         buffer.put(writePosition + HEADER, bytes);
+         buffer.force(writePosition + 4, 1 + bytes.length);
+         // the record only exists once its length is on disk
+         buffer.putInt(writePosition, bytes.length);
+         buffer.force(writePosition, 4);
+
+         pending.add(writePosition);
+         writePosition += HEADER + bytes.length;
+         return key;
+      }
+
+      /*
+       * Rewrites the journal with only the pending records. The new journal
+       * is built in a separate file and renamed over the old one, so a crash
+       * leaves one or the other in place, never a mix.
+       **/
+      synchronized void compact() throws IOException {
+         File compacted = new File(file.getPath() + ".compact");
+         Files.deleteIfExists(compacted.toPath());
+         try (FileChannel channel = FileChannel.open(compacted.toPath(),
+               StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, CAPACITY);
+            for (int offset : pending) {
+               ByteBuffer record = buffer.duplicate();
+               record.position(offset).limit(offset + HEADER + buffer.getInt(offset));
+               out.put(record);
+            }
+            out.force();
+         }
+         Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+         map();
+         generation++;
+      }
+
+      /*
+       * Starts the background forwarder, which sends the pending orders to
+       * the database in journal order every few seconds.
+       **/
+      void startForwarder(Cafe esql) {
+         forwarder = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "order-journal-forwarder");
+            thread.setDaemon(true);
+            return thread;
+         });
+         forwarder.scheduleWithFixedDelay(() -> forwardPending(esql), 0, FORWARD_INTERVAL_SECONDS, TimeUnit.SECONDS);
+      }
+
+      private void forwardPending(Cafe esql) {
+         List<Integer> batch;
+         int batchGeneration;
+         synchronized (this) {
+            if (pending.isEmpty()) {
+               return;
+            }
+            batch = new ArrayList<Integer>(pending);
+            batchGeneration = generation;
+         }
+
+         // the forwarder has its own connections so its transactions never mix with the terminal's
+         Map<Integer, Connection> connections = new HashMap<Integer, Connection>();
+         try {
+            for (int position : batch) {
+               String[] record;
+               synchronized (this) {
+                  if (generation != batchGeneration) {
+                     return;
+                  }
+                  record = read(position);
+               }
+               // the order goes to the shard of its user
+               int shard = ShardForLogin(record[0].split(FIELD, -1)[1], esql.getShardCount());
+               Connection connection = connections.get(shard);
+               if (connection == null) {
+                  connection = esql.openConnection(shard);
+                  connection.setAutoCommit(false);
+                  connections.put(shard, connection);
+               }
+               forward(connection, record);
+               connection.commit();
+               synchronized (this) {
+                  if (generation != batchGeneration) {
+                     // moved by a compaction, it is replayed (and skipped by its key) next round
+                     return;
+                  }
+                  markForwarded(position);
+               }
+            }
+            synchronized (this) {
+               if (pending.isEmpty()) {
+                  compact();
+               }
+            }
+         } catch (Exception e) {
+            // the database is still unreachable, the orders stay pending for the next round
+         } finally {
+            for (Connection connection : connections.values()) {
+               try {
+                  connection.close();
+               } catch (SQLException e) {
+                  // ignored.
+               }
+            }
+         }
+      }
+
+      private synchronized void markForwarded(int position) {
+         buffer.put(position + 4, FORWARDED);
+         buffer.force(position + 4, 1);
+         pending.remove(Integer.valueOf(position));
+      }
+
+      private String[] read(int position) {
+         byte[] bytes = new byte[buffer.getInt(position)];
+         buffer.get(position + HEADER, bytes);
+         return new String(bytes, StandardCharsets.UTF_8).split(ITEM, -1);
+      }
+
+      /*
+       * Writes one journaled order in the connection's open transaction,
+       * unless an order with its key already exists.
+       **/
+      private static void forward(Connection connection, String[] record) throws SQLException {
+         String[] order = record[0].split(FIELD, -1);
+         String key = order[0];
+         String login = Quote(order[1]);
+         String timeStamp = order[2];
+
+         Statement stmt = connection.createStatement();
+         ResultSet rs = stmt.executeQuery(String.format("INSERT INTO Orders (login, paid, timeStampRecieved, total, journalKey) SELECT '%s', false, '%s', 0, '%s' WHERE NOT EXISTS (SELECT 1 FROM Orders WHERE journalKey = '%s') RETURNING orderid", login, timeStamp, key, key));
+         if (!rs.next()) {
+            // already forwarded before a crash
+            stmt.close();
+            return;
+         }
+         int orderId = rs.getInt(1);
+         for (int i = 1; i < record.length; i++) {
+            String[] item = record[i].split(FIELD, -1);
+            // items that are not on the menu (anymore) are dropped instead of blocking the journal
+            stmt.executeUpdate(String.format("INSERT INTO ItemStatus (orderid, itemName, lastUpdated, comments) SELECT '%s', itemName, '%s', '%s' FROM Menu WHERE itemName = '%s' ON CONFLICT DO NOTHING", orderId, timeStamp, Quote(item[1]), Quote(item[0])));
+         }
+         stmt.executeUpdate(String.format("UPDATE Orders SET total = COALESCE((SELECT SUM(price) FROM MENU WHERE itemName IN (SELECT itemName FROM ItemStatus WHERE orderid = '%s')), 0) WHERE orderId = '%s'", orderId, orderId));
+         stmt.close();
+      }
+
+      private static String Quote(String value) {
+         return value.replace("'", "''");
+      }
+
+      /*
+       * Stops the forwarder. Pending orders stay in the journal and are sent
+       * by the next run.
+       **/
+      synchronized void close() {
+         if (forwarder != null) {
+            forwarder.shutdownNow();
+         }
+         buffer.force();
+         try {
+            lockChannel.close();
+         } catch (IOException e) {
+            // ignored.
+         }
+      }
+   }// end OrderJournal
+
+   /**
+    * Local TCP proxy that sits between the client and Postgres to simulate
+    * a database across a slow or unreliable network. Every packet is held
+    * for the one way delay plus a random jitter and its transmission time at
+    * the given bandwidth, in order, and each packet may drop the connection
+    * with the given probability. Used by RunLatencyScenarios.
+    */
+   static class LatencyProxy implements AutoCloseable {
+      private final String targetHost;
+      private final int targetPort;
+      private final int delayMillis;
+      private final int jitterMillis;
+      private final long bytesPerSecond;
+      private final double dropProbability;
+      private final ServerSocket server;
+      private final Random random = new Random();
+      private final List<Closeable> resources = Collections.synchronizedList(new ArrayList<Closeable>());
+
+      LatencyProxy(String targetHost, int targetPort, int delayMillis, int jitterMillis, long bytesPerSecond, double dropProbability) throws IOException {
+         this.targetHost = targetHost;
+         this.targetPort = targetPort;
+         this.delayMillis = delayMillis;
+         this.jitterMillis = jitterMillis;
+         this.bytesPerSecond = bytesPerSecond;
+         this.dropProbability = dropProbability;
+         this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+         Thread acceptor = new Thread(this::acceptConnections, "latency-proxy");
+         acceptor.setDaemon(true);
+         acceptor.start();
+      }
+
+      String getHost() {
+         return server.getInetAddress().getHostAddress();
+      }
+
+      int getPort() {
+         return server.getLocalPort();
+      }
+
+      private void acceptConnections() {
+         while (!server.isClosed()) {
+            Socket client;
+            try {
+               client = server.accept();
+            } catch (IOException e) {
+               // the proxy was closed
+               return;
+            }
+            try {
+               Socket upstream = new Socket(targetHost, targetPort);
+               client.setTcpNoDelay(true);
+               upstream.setTcpNoDelay(true);
+               resources.add(client);
+               resources.add(upstream);
+               forward(client, upstream);
+               forward(upstream, client);
+            } catch (IOException e) {
+               // the database refused the connection, so does the proxy
+               Close(client);
+            }
+         }
+      }
+
+      /*
+       * Copies one direction of a connection. The reader schedules each packet
+       * on a single thread at its delivery time, which keeps them in order.
+       **/
+      private void forward(Socket from, Socket to) {
+         ScheduledExecutorService link = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "latency-proxy-link");
+            thread.setDaemon(true);
+            return thread;
+         });
+         resources.add(link::shutdownNow);
+         Thread reader = new Thread(() -> {
+            long lastDelivery = 0;
+            try {
+               InputStream input = from.getInputStream();
+               OutputStream output = to.getOutputStream();
+               byte[] buffer = new byte[8192];
+               int length;
+               while ((length = input.read(buffer)) > 0) {
+                  if (dropProbability > 0 && random.nextDouble() < dropProbability) {
+                     break;
+                  }
+                  long now = System.nanoTime();
+                  long delay = TimeUnit.MILLISECONDS.toNanos(delayMillis + (jitterMillis > 0 ? random.nextInt(jitterMillis + 1) : 0));
+                  long transmission = bytesPerSecond > 0 ? length * 1000000000L / bytesPerSecond : 0;
+                  // a packet can not overtake the previous one, nor share the link with it
+                  lastDelivery = Math.max(now + delay, lastDelivery) + transmission;
+                  byte[] packet = Arrays.copyOf(buffer, length);
+                  link.schedule(() -> {
+                     try {
+                        output.write(packet);
+                        output.flush();
+                     } catch (IOException e) {
+                        Close(from);
+                        Close(to);
+                     }
+                  }, lastDelivery - now, TimeUnit.NANOSECONDS);
+               }
+               // deliver what is still in flight, then close both ends
+               link.schedule(() -> {
+                  Close(from);
+                  Close(to);
+                  link.shutdown();
+               }, Math.max(0, lastDelivery - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (IOException | RejectedExecutionException e) {
+               // the connection or the proxy was closed
+               Close(from);
+               Close(to);
+            }
+         }, "latency-proxy-reader");
+         reader.setDaemon(true);
+         reader.start();
+      }
+
+      private static void Close(Closeable resource) {
+         try {
+            resource.close();
+         } catch (IOException e) {
+            // ignored.
+         }
+      }
+
+      public void close() {
+         Close(server);
+         synchronized (resources) {
+            for (Closeable resource : resources) {
+               Close(resource);
+            }
+         }
+      }
+   }// end LatencyProxy
+
+   /**
+    * In memory, column oriented copy of the current day's orders and their
+    * items, so the dashboard's aggregates cost no database work.
+    *
+    * Every attribute is a primitive array indexed by row; logins, item names
+    * and statuses are dictionary encoded. The snapshot is loaded once, then
+    * kept current by the order path (orders placed, items added and orders
+    * marked paid on this terminal) and by small delta queries for the orders
+    * and items added or changed since the last refresh. The item delta
+    * reads the items changed since the last refresh (index14) and the items
+    * of the newest orders, whose lastUpdated is the time the order was
+    * started and may be older than the last refresh. Changes the deltas can not see, like orders paid or items
+    * deleted from another terminal, are picked up by a full reload every
+    * RELOAD_MILLIS, and when the day changes.
+    */
+   static class OrderSnapshot {
+      private static final long RELOAD_MILLIS = 60000;
+      // orderids committed slightly out of order are still picked up by the delta
+      private static final int ORDERID_LOOKBACK = 100;
+      // rows per task when scanning in parallel
+      private static final int SCAN_CHUNK = 1 << 16;
+      // the default status of ItemStatus
+      private static final String NEW_ITEM_STATUS = "Hasn't started";
+
+      // order columns
+      private int orderCount;
+      private int[] orderIds;
+      private long[] timeStamps;
+      private int[] totalCents;
+      private boolean[] paid;
+      private int[] logins;
+      private final Map<Integer, Integer> orderRows = new HashMap<Integer, Integer>();
+
+      // item columns
+      private int itemCount;
+      private int[] itemOrderRows;
+      private int[] itemNames;
+      private int[] itemStatuses;
+      private final Map<Long, Integer> itemRows = new HashMap<Long, Integer>();
+
+      // dictionaries
+      private final Dictionary loginDictionary = new Dictionary();
+      private final Dictionary itemNameDictionary = new Dictionary();
+      private final Dictionary statusDictionary = new Dictionary();
+
+      private LocalDate day;
+      private long loadedAt;
+      private int maxOrderId;
+      private Timestamp lastItemUpdate;
+
+      /*
+       * Brings the snapshot up to date, reloading it when it is from another
+       * day or older than RELOAD_MILLIS.
+       **/
+      void refresh(Cafe esql) throws SQLException {
+         if (!LocalDate.now().equals(day) || System.currentTimeMillis() - loadedAt > RELOAD_MILLIS) {
+            load(esql);
+            return;
+         }
+         Timestamp startOfDay = Timestamp.valueOf(day.atStartOfDay());
+         int newOrders = maxOrderId - ORDERID_LOOKBACK;
+         applyOrders(esql.executeQueryOnAllShardsAndReturnResult(String.format(
+               "SELECT orderid, login, paid, timeStampRecieved, total FROM Orders WHERE orderid > %d AND timeStampRecieved >= '%s'",
+               newOrders, startOfDay), null));
+         applyItems(esql.executeQueryOnAllShardsAndReturnResult(String.format(
+               "SELECT i.orderid, i.itemName, i.status, i.lastUpdated, o.total FROM ItemStatus i JOIN Orders o ON o.orderid = i.orderid WHERE (i.lastUpdated >= '%s' OR i.orderid > %d) AND o.timeStampRecieved >= '%s'",
+               lastItemUpdate, newOrders, startOfDay), null));
+      }
+
+      private void load(Cafe esql) throws SQLException {
+         day = LocalDate.now();
+         loadedAt = System.currentTimeMillis();
+         orderCount = 0;
+         orderIds = new int[1024];
+         timeStamps = new long[1024];
+         totalCents = new int[1024];
+         paid = new boolean[1024];
+         logins = new int[1024];
+         orderRows.clear();
+         itemCount = 0;
+         itemOrderRows = new int[1024];
+         itemNames = new int[1024];
+         itemStatuses = new int[1024];
+         itemRows.clear();
+         maxOrderId = 0;
+         lastItemUpdate = Timestamp.valueOf(day.atStartOfDay());
+
+         Timestamp startOfDay = Timestamp.valueOf(day.atStartOfDay());
+         applyOrders(esql.executeQueryOnAllShardsAndReturnResult(String.format(
+               "SELECT orderid, login, paid, timeStampRecieved, total FROM Orders WHERE timeStampRecieved >= '%s'",
+               startOfDay), null));
+         applyItems(esql.executeQueryOnAllShardsAndReturnResult(String.format(
+               "SELECT i.orderid, i.itemName, i.status, i.lastUpdated, o.total FROM ItemStatus i JOIN Orders o ON o.orderid = i.orderid WHERE o.timeStampRecieved >= '%s'",
+               startOfDay), null));
+      }
+
+      private void applyOrders(List<List<String>> records) {
+         for (List<String> record : records) {
+            int orderId = Integer.parseInt(record.get(0));
+            Integer row = orderRows.get(orderId);
+            if (row == null) {
+               if (orderCount == orderIds.length) {
+                  int capacity = orderCount * 2;
+                  orderIds = Arrays.copyOf(orderIds, capacity);
+                  timeStamps = Arrays.copyOf(timeStamps, capacity);
+                  totalCents = Arrays.copyOf(totalCents, capacity);
+                  paid = Arrays.copyOf(paid, capacity);
+                  logins = Arrays.copyOf(logins, capacity);
+               }
+               row = orderCount++;
+               orderRows.put(orderId, row);
+            }
+            orderIds[row] = orderId;
+            logins[row] = loginDictionary.encode(record.get(1));
+            paid[row] = "t".equals(record.get(2)) || "true".equals(record.get(2));
+            timeStamps[row] = Timestamp.valueOf(record.get(3)).getTime();
+            totalCents[row] = Cents(record.get(4));
+            maxOrderId = Math.max(maxOrderId, orderId);
+         }
+      }
+
+      private void applyItems(List<List<String>> records) {
+         for (List<String> record : records) {
+            Integer orderRow = orderRows.get(Integer.parseInt(record.get(0)));
+            if (orderRow == null) {
+               // the order was placed after the last order delta, the next refresh adds both
+               continue;
+            }
+            int itemName = itemNameDictionary.encode(record.get(1));
+            long key = ((long) orderRow << 32) | itemName;
+            Integer row = itemRows.get(key);
+            if (row == null) {
+               if (itemCount == itemOrderRows.length) {
+                  int capacity = itemCount * 2;
+                  itemOrderRows = Arrays.copyOf(itemOrderRows, capacity);
+                  itemNames = Arrays.copyOf(itemNames, capacity);
+                  itemStatuses = Arrays.copyOf(itemStatuses, capacity);
+               }
+               row = itemCount++;
+               itemRows.put(key, row);
+            }
+            itemOrderRows[row] = orderRow;
+            itemNames[row] = itemName;
+            itemStatuses[row] = statusDictionary.encode(record.get(2));
+            // adding items changes the order's total
+            totalCents[orderRow] = Cents(record.get(4));
+            Timestamp lastUpdated = Timestamp.valueOf(record.get(3));
+            if (lastUpdated.after(lastItemUpdate)) {
+               lastItemUpdate = lastUpdated;
+            }
+         }
+      }
+
+      /*
+       * Called by the order path when an order has been placed on this
+       * terminal, so the dashboard shows it before the next refresh.
+       **/
+      void recordOrder(int orderId, String login, Timestamp timeStamp) {
+         if (!timeStamp.toLocalDateTime().toLocalDate().equals(day)) {
+            return;
+         }
+         // the deltas still have to read the orders of other terminals committed before this one
+         int deltaOrderId = maxOrderId;
+         applyOrders(Arrays.asList(Arrays.asList(String.valueOf(orderId), login, "f", timeStamp.toString(), "0")));
+         maxOrderId = deltaOrderId;
+      }
+
+      /*
+       * Called by the order path when items have been added to an order on
+       * this terminal, with the order's new total.
+       **/
+      void recordItems(int orderId, String total, List<String> itemNames) {
+         if (day == null) {
+            return;
+         }
+         Timestamp deltaItemUpdate = lastItemUpdate;
+         List<List<String>> records = new ArrayList<List<String>>();
+         for (String itemName : itemNames) {
+            records.add(Arrays.asList(String.valueOf(orderId), itemName, NEW_ITEM_STATUS, deltaItemUpdate.toString(), total));
+         }
+         applyItems(records);
+         lastItemUpdate = deltaItemUpdate;
+      }
+
+      /*
+       * Called by the order path when an order has been marked paid.
+       **/
+      void markPaid(int orderId) {
+         Integer row = orderRows.get(orderId);
+         if (row != null) {
+            paid[row] = true;
+         }
+      }
+
+      /*
+       * Sums the order columns: order count, unpaid count, revenue and unpaid
+       * amount in cents. Large snapshots are scanned in parallel, one chunk
+       * of rows per task.
+       **/
+      long[] orderTotals() {
+         int rows = orderCount;
+         return IntStream.range(0, (rows + SCAN_CHUNK - 1) / SCAN_CHUNK)
+               .parallel()
+               .mapToObj(chunk -> {
+                  long[] totals = new long[4];
+                  int end = Math.min(rows, (chunk + 1) * SCAN_CHUNK);
+                  for (int row = chunk * SCAN_CHUNK; row < end; row++) {
+                     totals[0]++;
+                     totals[2] += totalCents[row];
+                     if (!paid[row]) {
+                        totals[1]++;
+                        totals[3] += totalCents[row];
+                     }
+                  }
+                  return totals;
+               })
+               .reduce(new long[4], (a, b) -> new long[] { a[0] + b[0], a[1] + b[1], a[2] + b[2], a[3] + b[3] });
+      }
+
+      /*
+       * Counts the items per status code, scanned like orderTotals.
+       **/
+      long[] itemsByStatus() {
+         int rows = itemCount;
+         int statuses = statusDictionary.size();
+         return IntStream.range(0, (rows + SCAN_CHUNK - 1) / SCAN_CHUNK)
+               .parallel()
+               .mapToObj(chunk -> {
+                  long[] counts = new long[statuses];
+                  int end = Math.min(rows, (chunk + 1) * SCAN_CHUNK);
+                  for (int row = chunk * SCAN_CHUNK; row < end; row++) {
+                     counts[itemStatuses[row]]++;
+                  }
+                  return counts;
+               })
+               .reduce(new long[statuses], (a, b) -> {
+                  long[] sum = new long[statuses];
+                  for (int i = 0; i < statuses; i++) {
+                     sum[i] = a[i] + b[i];
+                  }
+                  return sum;
+               });
+      }
+
+      void print() {
+         long[] totals = orderTotals();
+         long[] statuses = itemsByStatus();
+         System.out.println("-----TODAY (" + day + ")-----");
+         System.out.println("Orders: " + totals[0]);
+         System.out.println("Unpaid orders: " + totals[1]);
+         System.out.println("Revenue so far: " + currencyFormatter.format(totals[2] / 100.0));
+         System.out.println("Still to be paid: " + currencyFormatter.format(totals[3] / 100.0));
+         System.out.println("Items by status:");
+         for (int status = 0; status < statuses.length; status++) {
+            System.out.println("\t" + statusDictionary.decode(status) + ": " + statuses[status]);
+         }
+         System.out.println("-----END OF TODAY-----");
+      }
+
+      private static int Cents(String price) {
+         return price == null ? 0 : (int) Math.round(Double.parseDouble(price) * 100);
+      }
+
+      /*
+       * Maps the distinct values of a string column to dense int codes.
+       **/
+      private static class Dictionary {
+         private final Map<String, Integer> codes = new HashMap<String, Integer>();
+         private final List<String> values = new ArrayList<String>();
+
+         int encode(String value) {
+            String key = value == null ? "" : value.strip();
+            Integer code = codes.get(key);
+            if (code == null) {
+               code = values.size();
+               codes.put(key, code);
+               values.add(key);
+            }
+            return code;
+         }
+
+         String decode(int code) {
+            return values.get(code);
+         }
+
+         int size() {
+            return values.size();
+         }
+      }
+   }// end OrderSnapshot
+
 }// end Cafe
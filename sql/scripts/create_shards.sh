@@ -0,0 +1,15 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Creates one store database (shard) per argument, e.g.
+#    create_shards.sh $USER"_store1" $USER"_store2"
+# and run the client with the same list: Cafe $USER"_store1",$USER"_store2" $PGPORT $USER
+SHARDS=$#
+SHARD=0
+for DB in "$@"; do
+   createdb -h localhost -p $PGPORT $DB
+   psql -h localhost -p $PGPORT $DB < $DIR/../src/create_tables.sql
+   psql -h localhost -p $PGPORT $DB < $DIR/../src/create_indexes.sql
+   psql -h localhost -p $PGPORT $DB < $DIR/../src/load_data.sql
+   psql -h localhost -p $PGPORT -v shard=$SHARD -v shards=$SHARDS $DB < $DIR/../src/shard_data.sql
+   SHARD=$((SHARD + 1))
+done
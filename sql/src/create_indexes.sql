@@ -47,4 +47,14 @@ ON orders
 
 CREATE INDEX index12
 ON ItemStatus
-( itemName );
\ No newline at end of file
+( itemName );
+
+-- Used for paging through a user's order history, newest first
+CREATE INDEX index13
+ON orders
+(login, timeStampRecieved DESC, orderid DESC);
+
+-- Used by the dashboard to read the items changed since its last refresh
+CREATE INDEX index14
+ON ItemStatus
+(lastUpdated);
@@ -25,6 +25,7 @@ CREATE TABLE Orders(
 	paid boolean,
 	timeStampRecieved timestamp NOT NULL,
 	total real NOT NULL,
+	journalKey char(36) UNIQUE,  -- Set for orders taken offline, makes replaying them idempotent
 	PRIMARY KEY(orderid));
 
 CREATE TABLE ItemStatus(
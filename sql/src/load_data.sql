@@ -6,7 +6,7 @@ COPY USERS
 FROM '/home/henry/DATABASE/DatabaseClassProject/data/users.csv'
 WITH DELIMITER ';';
 
-COPY ORDERS
+COPY ORDERS (orderid, login, paid, timeStampRecieved, total)
 FROM '/home/henry/DATABASE/DatabaseClassProject/data/orders.csv'
 WITH DELIMITER ';';
 ALTER SEQUENCE orders_orderid_seq RESTART 87257;
@@ -0,0 +1,19 @@
+-- Keeps only the users and orders that belong to one store database (shard).
+-- Run on every shard after load_data.sql with
+--    psql -v shard=<index of this database> -v shards=<number of databases>
+-- The shard of a login must match Cafe.ShardForLogin: the first 4 bytes of
+-- md5(login) as an unsigned number, modulo the number of shards.
+-- The menu is left as loaded, every shard has a full copy.
+
+DELETE FROM Users
+WHERE ('x' || substr(md5(trim(login)), 1, 8))::bit(32)::bigint % :shards <> :shard;
+
+-- Orders without a login stay on the first shard
+DELETE FROM Orders  -- ItemStatus rows are deleted with their order
+WHERE (login IS NULL AND :shard <> 0)
+   OR ('x' || substr(md5(trim(login)), 1, 8))::bit(32)::bigint % :shards <> :shard;
+
+-- New orderids must stay unique across the shards, each shard hands out the
+-- ids equal to its index modulo the number of shards
+SELECT setval('orders_orderid_seq', 87257 + ((:shard - 87257 % :shards + :shards) % :shards), false);
+ALTER SEQUENCE orders_orderid_seq INCREMENT BY :shards;